@@ -0,0 +1,86 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Version;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+// A small generated training set for the benchmarks: one index of positive and one of negative
+// synthetic images in a temporary directory. The features are extracted by the same document
+// builder the indexer uses.
+class BenchmarkIndex {
+    private static final int imageWidth = 320;
+    private static final int imageHeight = 240;
+
+    final File directory;
+    final HashMap<String, SampleType> indexPaths = new HashMap<String, SampleType>();
+    private final DocumentBuilder documentBuilder;
+    private final SyntheticImages images;
+
+    BenchmarkIndex(ArrayList<String> featureNames, int numDocuments, long seed) throws IOException {
+        directory = Files.createTempDirectory("opensea-benchmark").toFile();
+        documentBuilder = Classifier.getCustomDocumentBuilder(featureNames);
+        images = new SyntheticImages(imageWidth, imageHeight, seed);
+        writeIndex(new File(directory, "positive"), SampleType.POSITIVE, numDocuments / 2);
+        writeIndex(new File(directory, "negative"), SampleType.NEGATIVE, numDocuments - numDocuments / 2);
+    }
+
+    private void writeIndex(File indexDirectory, SampleType sampleType, int numDocuments) throws IOException {
+        IndexWriterConfig config = new IndexWriterConfig(Version.LUCENE_4_10_2, new WhitespaceAnalyzer(Version.LUCENE_4_10_2));
+        IndexWriter indexWriter = new IndexWriter(FSDirectory.open(indexDirectory), config);
+        try {
+            for (int i = 0; i < numDocuments; ++i)
+                indexWriter.addDocument(createDocument(sampleType, i));
+        } finally {
+            indexWriter.close();
+        }
+        indexPaths.put(indexDirectory.getPath(), sampleType);
+    }
+
+    // The document of a new image, which is only part of the training set if written to it.
+    Document createDocument(SampleType sampleType, int number) throws IOException {
+        String imagePath = directory.getPath() + File.separator + SyntheticImages.fileName(sampleType, number);
+        return documentBuilder.createDocument(images.create(sampleType), imagePath);
+    }
+
+    void delete() {
+        delete(directory);
+    }
+
+    static void delete(File file) {
+        File[] files = file.listFiles();
+        if (files != null) {
+            for (File child : files)
+                delete(child);
+        }
+        file.delete();
+    }
+}
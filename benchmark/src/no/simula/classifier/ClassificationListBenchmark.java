@@ -0,0 +1,101 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StringField;
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Collecting the classifications of several worker threads. Every worker fills its own list, which
+// is compared with a single list the workers share under a lock. Lists are emptied regularly, so
+// that kept classifications do not pile up over an iteration.
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class ClassificationListBenchmark {
+    private static final int numClassifications = 256;
+    private static final int maximumListSize = 1 << 16;
+    private static final String[] featureNames = {"CEDD", "FCTH", "JCD", "LateFusion"};
+
+    @State(Scope.Benchmark)
+    public static class SharedList {
+        @Param({"true", "false"})
+        public boolean keepClassifications;
+
+        ClassificationList list;
+
+        @Setup(Level.Iteration)
+        public void setup() {
+            list = new ClassificationList(keepClassifications, true);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Worker {
+        ClassificationList list;
+        Classification[] classifications;
+        int next = 0;
+
+        @Setup(Level.Iteration)
+        public void setup(SharedList sharedList) {
+            list = new ClassificationList(sharedList.keepClassifications, true);
+            Random random = new Random(next);
+            classifications = new Classification[numClassifications];
+            for (int i = 0; i < numClassifications; ++i) {
+                Document document = new Document();
+                document.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, (random.nextBoolean() ? "p" : "n") + i + ".jpg", Field.Store.YES));
+                classifications[i] = new Classification(document);
+                for (String featureName : featureNames)
+                    classifications[i].insert(featureName, random.nextBoolean() ? SampleType.POSITIVE : SampleType.NEGATIVE);
+            }
+        }
+
+        Classification nextClassification() {
+            Classification classification = classifications[next];
+            next = (next + 1) % numClassifications;
+            return classification;
+        }
+    }
+
+    @Benchmark
+    public void insertIntoThreadList(Worker worker) {
+        if (worker.list.size() >= maximumListSize)
+            worker.list.clear();
+        worker.list.insert(worker.nextClassification());
+    }
+
+    @Benchmark
+    public void insertIntoSharedList(SharedList sharedList, Worker worker) {
+        Classification classification = worker.nextClassification();
+        synchronized (sharedList.list) {
+            if (sharedList.list.size() >= maximumListSize)
+                sharedList.list.clear();
+            sharedList.list.insert(classification);
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+// The vote of a single feature on the sample type of a query: the search of the training indices
+// and the evaluation of the matches under every measure. Queries are generated images that are not
+// part of the training set, and are classified in turn.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ClassifierBenchmark {
+    private static final int numQueries = 64;
+
+    @Param({"CEDD"})
+    public String featureName;
+
+    @Param({"2000"})
+    public int numDocuments;
+
+    @Param({"BIT_SAMPLING", "FLAT"})
+    public String searchEngine;
+
+    @Param({"COUNT", "WEIGHTED_COUNT", "WEIGHTED_SCORE", "WEIGHTED_AVERAGE_SCORE"})
+    public String measureType;
+
+    private BenchmarkIndex index;
+    private Classifier classifier;
+    private SearchProvider searchProvider;
+    private MeasureType measure;
+    private Document[] queries;
+    private int nextQuery = 0;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        ArrayList<String> featureNames = new ArrayList<String>(Collections.singletonList(featureName));
+        index = new BenchmarkIndex(featureNames, numDocuments, 42);
+        classifier = new Classifier(index.indexPaths, true);
+        classifier.setSearchEngine(SearchEngine.valueOf(searchEngine));
+        searchProvider = classifier.setupSearchProviders(featureNames).get(0);
+        measure = MeasureType.valueOf(measureType);
+        queries = new Document[numQueries];
+        for (int i = 0; i < numQueries; ++i)
+            queries[i] = index.createDocument(i % 2 == 0 ? SampleType.POSITIVE : SampleType.NEGATIVE, numDocuments + i);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        index.delete();
+    }
+
+    @Benchmark
+    public Object getMatchingSampleTypeForDocument() throws IOException {
+        Document query = queries[nextQuery];
+        nextQuery = (nextQuery + 1) % numQueries;
+        return classifier.getMatchingSampleTypeForDocument(query, searchProvider, measure);
+    }
+}
@@ -0,0 +1,408 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import no.simula.common.FeatureMatrix;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import org.opencv.core.Core;
+import org.opencv.highgui.VideoCapture;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Measures indexing and classification end to end on generated data, so that releases can be
+// compared on any machine without downloading datasets. For every combination of training set size
+// and thread count it indexes the training images, classifies an indexed dataset, classifies the
+// same images one by one to measure the latency of single classifications, and classifies a video.
+// The results are written as json.
+public class EndToEndBenchmark {
+    private static final long seed = 42;
+    private static final int framesPerSecond = 25;
+    private static final int framesPerScene = 50;
+
+    private static File workDirectory = null;
+    private static int[] trainingImages = {1000};
+    private static int classifiedImages = 200;
+    private static int videoFrames = 500;
+    private static int[] threads = {Math.max(1, Runtime.getRuntime().availableProcessors() / 2)};
+    private static ArrayList<String> imageFeatures = new ArrayList<String>();
+    private static SearchEngine searchEngine = SearchEngine.BIT_SAMPLING;
+    private static int rerank = 0;
+    private static int imageWidth = 640;
+    private static int imageHeight = 480;
+    private static String output = null;
+
+    public static void printUsage() {
+        System.out.println("usage: java -cp benchmarks.jar no.simula.classifier.EndToEndBenchmark [-ti 1000,10000] [-st 1,2,4]");
+        System.out.println("       -w | -workDirectory        Directory for the generated images, indices and video.");
+        System.out.println("                                  A temporary directory, which is deleted afterwards, is default.");
+        System.out.println("       -ti | -trainingImages      Comma separated numbers of training images. 1000 is default.");
+        System.out.println("       -ci | -classifiedImages    Number of images to classify. 200 is default.");
+        System.out.println("       -vf | -videoFrames         Number of video frames to classify. 500 is default.");
+        System.out.println("       -st | -searchThreads       Comma separated numbers of threads indexing and classifying.");
+        System.out.println("                                  Half the available processors is default.");
+        System.out.println("       -f | -feature              A feature to use. Multiple features can be provided. JCD is default.");
+        System.out.println("       -e | -searchEngine         The search engine to use. (any of: bitSampling, flat, hnsw, pq)");
+        System.out.println("       -r | -rerank               Number of pq candidates to re-score with their exact distance. 0 is default,");
+        System.out.println("                                  which is only allowed for CEDD, FCTH and JCD.");
+        System.out.println("       -is | -imageSize           Size of the generated images and video frames. 640x480 is default.");
+        System.out.println("       -o | -output               The json file to write the results to.");
+        System.out.println("                                  benchmark-<seconds since 1970>.json is default.");
+        System.out.println("");
+        System.out.println("       Every combination of training images and search threads is measured.");
+        System.out.println("       All command line options must always be used in pairs of option and value.");
+        System.exit(-1);
+    }
+
+    private static int parsePositiveInt(String value, String name) {
+        int n = 0;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+        }
+        if (n < 1) {
+            System.out.println("illegal " + name + " value.");
+            printUsage();
+        }
+        return n;
+    }
+
+    private static int[] parsePositiveInts(String value, String name) {
+        String[] values = value.split(",");
+        int[] n = new int[values.length];
+        for (int i = 0; i < values.length; ++i)
+            n[i] = parsePositiveInt(values[i], name);
+        return n;
+    }
+
+    public static void verifyArguments(String[] args) {
+        int numArgs = args.length;
+        if (numArgs % 2 == 1)
+            printUsage();
+        for (int i = 0; i < numArgs; i+=2) {
+            String argument = args[i];
+            String value = args[i+1];
+            if (argument.equals("-w") || argument.equals("-workDirectory")) {
+                workDirectory = new File(value);
+            } else if (argument.equals("-ti") || argument.equals("-trainingImages")) {
+                trainingImages = parsePositiveInts(value, "trainingImages");
+            } else if (argument.equals("-ci") || argument.equals("-classifiedImages")) {
+                classifiedImages = parsePositiveInt(value, "classifiedImages");
+            } else if (argument.equals("-vf") || argument.equals("-videoFrames")) {
+                videoFrames = parsePositiveInt(value, "videoFrames");
+            } else if (argument.equals("-st") || argument.equals("-searchThreads")) {
+                threads = parsePositiveInts(value, "searchThreads");
+            } else if (argument.equals("-f") || argument.equals("-feature")) {
+                imageFeatures.add(value);
+            } else if (argument.equals("-e") || argument.equals("-searchEngine")) {
+                if (value.equals("bitSampling")) searchEngine = SearchEngine.BIT_SAMPLING;
+                else if (value.equals("flat")) searchEngine = SearchEngine.FLAT;
+                else if (value.equals("hnsw")) searchEngine = SearchEngine.HNSW;
+                else if (value.equals("pq")) searchEngine = SearchEngine.PQ;
+                else {
+                    System.out.println("illegal search engine.");
+                    printUsage();
+                }
+            } else if (argument.equals("-r") || argument.equals("-rerank")) {
+                rerank = parsePositiveInt(value, "rerank");
+            } else if (argument.equals("-is") || argument.equals("-imageSize")) {
+                String[] size = value.split("x");
+                if (size.length != 2)
+                    printUsage();
+                imageWidth = parsePositiveInt(size[0], "imageSize");
+                imageHeight = parsePositiveInt(size[1], "imageSize");
+            } else if (argument.equals("-o") || argument.equals("-output")) {
+                output = value;
+            } else {
+                printUsage();
+            }
+        }
+
+        if (imageFeatures.isEmpty())
+            imageFeatures.add("JCD");
+        if (searchEngine == SearchEngine.PQ && rerank == 0) {
+            for (String featureName : imageFeatures) {
+                if (!FeatureMatrix.isTanimotoFeature(featureName)) {
+                    System.out.println("pq search of " + featureName + " requires a rerank value.");
+                    printUsage();
+                }
+            }
+        }
+        if (output == null)
+            output = "benchmark-" + System.currentTimeMillis() / 1000 + ".json";
+    }
+
+    // The duration, throughput and peak heap usage of one phase of a run. The peak heap is the sum of
+    // the peaks of all heap pools, which may have been reached at different times, so it is an upper bound.
+    private static class Phase {
+        private final long startTime;
+        private double seconds = 0;
+        private double itemsPerSecond = 0;
+        private long peakHeapBytes = 0;
+
+        Phase() {
+            System.gc();
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+                pool.resetPeakUsage();
+            startTime = System.nanoTime();
+        }
+
+        Phase stop(int numItems) {
+            seconds = (System.nanoTime() - startTime) / 1e9;
+            itemsPerSecond = numItems / seconds;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP)
+                    peakHeapBytes += pool.getPeakUsage().getUsed();
+            }
+            return this;
+        }
+
+        // itemsPerSecondName may be null for phases without a throughput.
+        String toJson(String itemsPerSecondName, String extraFields) {
+            String throughput = itemsPerSecondName == null ? "" : String.format(Locale.ROOT, "\"%s\": %.2f, ", itemsPerSecondName, itemsPerSecond);
+            return String.format(Locale.ROOT, "{\"seconds\": %.3f, %s%s\"peakHeapMB\": %d}", seconds, throughput, extraFields, peakHeapBytes >> 20);
+        }
+    }
+
+    private static void index(File directory, int numThreads) {
+        ArrayList<String> args = new ArrayList<String>(Arrays.asList(directory.getPath(), "-s", "-extractThreads", String.valueOf(numThreads)));
+        for (String featureName : imageFeatures) {
+            args.add("-f");
+            args.add(featureName);
+        }
+        if (searchEngine == SearchEngine.HNSW)
+            args.add("-graph");
+        else if (searchEngine == SearchEngine.PQ)
+            args.add("-quantize");
+        no.simula.indexer.Main.main(args.toArray(new String[args.size()]));
+    }
+
+    private static String indexPath(File directory) {
+        return new File(directory, "index").getPath();
+    }
+
+    // The scenes of the video alternate between positive and negative images. Within a scene a small
+    // rectangle moves, so consecutive frames are similar but not equal.
+    private static BufferedImage createFrame(BufferedImage scene, int frameNumber, BufferedImage frame) {
+        Graphics2D graphics = frame.createGraphics();
+        graphics.drawImage(scene, 0, 0, null);
+        graphics.setColor(Color.WHITE);
+        int offset = (frameNumber % framesPerScene) * 4;
+        graphics.fillRect(offset % imageWidth, (offset / 2) % imageHeight, imageWidth / 16, imageHeight / 16);
+        graphics.dispose();
+        return frame;
+    }
+
+    // Returns what to pass to VideoCapture: an mjpeg avi file, or if this OpenCV cannot read those
+    // (it was built without a video backend), a numbered sequence of jpeg files.
+    private static String writeVideo(SyntheticImages images) throws IOException {
+        File videoFile = new File(workDirectory, "video.avi");
+        MjpegVideoWriter writer = new MjpegVideoWriter(videoFile, imageWidth, imageHeight, framesPerSecond);
+        BufferedImage frame = new BufferedImage(imageWidth, imageHeight, BufferedImage.TYPE_3BYTE_BGR);
+        BufferedImage scene = null;
+        try {
+            for (int i = 0; i < videoFrames; ++i) {
+                if (i % framesPerScene == 0)
+                    scene = images.create((i / framesPerScene) % 2 == 0 ? SampleType.POSITIVE : SampleType.NEGATIVE);
+                writer.write(createFrame(scene, i, frame));
+            }
+        } finally {
+            writer.close();
+        }
+        VideoCapture capture = new VideoCapture(videoFile.getPath());
+        boolean opened = capture.isOpened();
+        capture.release();
+        if (opened)
+            return videoFile.getPath();
+
+        System.out.println("this OpenCV can not read " + videoFile + ", using a sequence of jpeg files instead.");
+        File framesDirectory = new File(workDirectory, "frames");
+        framesDirectory.mkdirs();
+        for (int i = 0; i < videoFrames; ++i) {
+            if (i % framesPerScene == 0)
+                scene = images.create((i / framesPerScene) % 2 == 0 ? SampleType.POSITIVE : SampleType.NEGATIVE);
+            ImageIO.write(createFrame(scene, i, frame), "jpg", new File(framesDirectory, String.format("frame%06d.jpg", i)));
+        }
+        return new File(framesDirectory, "frame%06d.jpg").getPath();
+    }
+
+    private static ArrayList<Document> readDocuments(String indexPath) throws IOException {
+        ArrayList<Document> documents = new ArrayList<Document>();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(new File(indexPath)));
+        try {
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            for (int docId = 0; docId < reader.maxDoc(); ++docId) {
+                if (liveDocs == null || liveDocs.get(docId))
+                    documents.add(reader.document(docId));
+            }
+        } finally {
+            reader.close();
+        }
+        return documents;
+    }
+
+    // Classifies every document on its own, spread over numThreads threads, and returns the latency
+    // of every classification in nanoseconds. Correct LateFusion results are counted in numCorrect.
+    private static long[] classifyDocuments(Classifier classifier, ArrayList<Document> documents, int numThreads, AtomicInteger numCorrect) {
+        long[] latencies = new long[documents.size()];
+        AtomicInteger nextDocument = new AtomicInteger();
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+        for (int i = 0; i < numThreads; ++i) {
+            pool.execute(() -> {
+                int index;
+                while ((index = nextDocument.getAndIncrement()) < latencies.length) {
+                    Document document = documents.get(index);
+                    try {
+                        long startTime = System.nanoTime();
+                        Classification classification = classifier.classify(document, imageFeatures, MeasureType.COUNT);
+                        latencies[index] = System.nanoTime() - startTime;
+                        if (classification.get("LateFusion") == Utils.getSampleTypeFromDocument(document))
+                            numCorrect.incrementAndGet();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                        System.exit(-1);
+                    }
+                }
+            });
+        }
+        pool.shutdown();
+        try {
+            pool.awaitTermination(365, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return latencies;
+    }
+
+    private static double percentileMs(long[] sortedLatencies, double percentile) {
+        int index = (int) Math.ceil(percentile / 100 * sortedLatencies.length) - 1;
+        return sortedLatencies[Math.max(0, index)] / 1e6;
+    }
+
+    private static String run(File trainingDirectory, int numTrainingImages, int numThreads, HashMap<String, SampleType> inputDataIndices, ArrayList<Document> inputDocuments, String video) throws IOException {
+        System.out.println("measuring " + numTrainingImages + " training images with " + numThreads + " threads.");
+        StringBuilder json = new StringBuilder();
+        json.append("        {\"trainingImages\": ").append(numTrainingImages).append(", \"threads\": ").append(numThreads).append(",\n");
+
+        Phase indexing = new Phase();
+        index(trainingDirectory, numThreads);
+        json.append("         \"indexing\": ").append(indexing.stop(numTrainingImages).toJson("imagesPerSecond", "")).append(",\n");
+
+        HashMap<String, SampleType> classifierIndices = new HashMap<String, SampleType>();
+        classifierIndices.put(indexPath(trainingDirectory), SampleType.INVALID);
+        Classifier classifier = new Classifier(classifierIndices, true);
+        classifier.setSearchThreads(numThreads);
+        classifier.setSearchEngine(searchEngine);
+        classifier.setRerank(rerank);
+        classifier.setKeepClassifications(false);
+        Phase preparation = new Phase();
+        classifier.prepareSearch(imageFeatures);
+        json.append("         \"preparation\": ").append(preparation.stop(0).toJson(null, "")).append(",\n");
+
+        Phase dataset = new Phase();
+        classifier.classifyDataset(inputDataIndices, imageFeatures, MeasureType.COUNT);
+        json.append("         \"dataset\": ").append(dataset.stop(inputDocuments.size()).toJson("imagesPerSecond", "")).append(",\n");
+
+        Phase single = new Phase();
+        AtomicInteger numCorrect = new AtomicInteger();
+        long[] latencies = classifyDocuments(classifier, inputDocuments, numThreads, numCorrect);
+        single.stop(latencies.length);
+        Arrays.sort(latencies);
+        String latencyFields = String.format(Locale.ROOT, "\"p50Ms\": %.3f, \"p99Ms\": %.3f, \"lateFusionAccuracy\": %.3f, ",
+                percentileMs(latencies, 50), percentileMs(latencies, 99), numCorrect.get() / (double) latencies.length);
+        json.append("         \"singleImages\": ").append(single.toJson("imagesPerSecond", latencyFields)).append(",\n");
+
+        Phase videoPhase = new Phase();
+        classifier.classifyVideo(video, imageFeatures, MeasureType.COUNT);
+        json.append("         \"video\": ").append(videoPhase.stop(videoFrames).toJson("framesPerSecond", "")).append("}");
+        return json.toString();
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        verifyArguments(args);
+        boolean temporaryWorkDirectory = workDirectory == null;
+        if (temporaryWorkDirectory)
+            workDirectory = Files.createTempDirectory("opensea-benchmark").toFile();
+        try {
+            SyntheticImages images = new SyntheticImages(imageWidth, imageHeight, seed);
+            System.out.println("generating " + classifiedImages + " images to classify and a video of " + videoFrames + " frames in " + workDirectory + ".");
+            File inputDirectory = new File(workDirectory, "input");
+            images.write(inputDirectory, classifiedImages);
+            index(inputDirectory, threads[threads.length - 1]);
+            HashMap<String, SampleType> inputDataIndices = new HashMap<String, SampleType>();
+            inputDataIndices.put(indexPath(inputDirectory), SampleType.INVALID);
+            ArrayList<Document> inputDocuments = readDocuments(indexPath(inputDirectory));
+            String video = writeVideo(images);
+
+            ArrayList<String> runs = new ArrayList<String>();
+            for (int numTrainingImages : trainingImages) {
+                File trainingDirectory = new File(workDirectory, "training-" + numTrainingImages);
+                System.out.println("generating " + numTrainingImages + " training images.");
+                images.write(trainingDirectory, numTrainingImages);
+                for (int numThreads : threads)
+                    runs.add(run(trainingDirectory, numTrainingImages, numThreads, inputDataIndices, inputDocuments, video));
+            }
+
+            FileWriter writer = new FileWriter(output);
+            try {
+                writer.write("{\n");
+                writer.write("    \"features\": [\"" + String.join("\", \"", imageFeatures) + "\"],\n");
+                writer.write("    \"searchEngine\": \"" + searchEngine + "\",\n");
+                writer.write("    \"imageSize\": \"" + imageWidth + "x" + imageHeight + "\",\n");
+                writer.write("    \"classifiedImages\": " + inputDocuments.size() + ",\n");
+                writer.write("    \"videoFrames\": " + videoFrames + ",\n");
+                writer.write("    \"video\": \"" + (video.endsWith(".avi") ? "mjpeg avi" : "jpeg sequence") + "\",\n");
+                writer.write("    \"processors\": " + Runtime.getRuntime().availableProcessors() + ",\n");
+                writer.write("    \"maxHeapMB\": " + (Runtime.getRuntime().maxMemory() >> 20) + ",\n");
+                writer.write("    \"runs\": [\n" + String.join(",\n", runs) + "\n    ]\n");
+                writer.write("}\n");
+            } finally {
+                writer.close();
+            }
+            System.out.println("wrote the results to " + output + ".");
+        } finally {
+            if (temporaryWorkDirectory)
+                BenchmarkIndex.delete(workDirectory);
+        }
+    }
+}
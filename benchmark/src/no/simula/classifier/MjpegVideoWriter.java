@@ -0,0 +1,177 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+
+// Writes images as frames of a motion jpeg avi file, which every OpenCV VideoCapture can read.
+// The Java bindings of OpenCV 2.4 have no VideoWriter, so the container is written here: a RIFF
+// header with one video stream, the jpeg frames and an index of them. The sizes in the header are
+// only known once all frames are written, so they are filled in by close().
+class MjpegVideoWriter {
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+
+    private final RandomAccessFile output;
+    private final int width;
+    private final int height;
+    private final int framesPerSecond;
+    private final ArrayList<long[]> frameChunks = new ArrayList<long[]>(); // offset and size of every frame.
+    private long riffSizePosition;
+    private long totalFramesPosition;
+    private long lengthPosition;
+    private long moviSizePosition;
+    private int maximumFrameSize = 0;
+    private final ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+
+    MjpegVideoWriter(File file, int width, int height, int framesPerSecond) throws IOException {
+        output = new RandomAccessFile(file, "rw");
+        output.setLength(0);
+        this.width = width;
+        this.height = height;
+        this.framesPerSecond = framesPerSecond;
+        writeHeader();
+    }
+
+    private void writeHeader() throws IOException {
+        writeFourCC("RIFF");
+        riffSizePosition = output.getFilePointer();
+        writeInt(0);
+        writeFourCC("AVI ");
+
+        writeFourCC("LIST");
+        writeInt(4 + 8 + 56 + 12 + 8 + 56 + 8 + 40);
+        writeFourCC("hdrl");
+        writeFourCC("avih");
+        writeInt(56);
+        writeInt(1000000 / framesPerSecond); // microseconds per frame
+        writeInt(0); // maximum bytes per second
+        writeInt(0); // padding granularity
+        writeInt(AVIF_HASINDEX);
+        totalFramesPosition = output.getFilePointer();
+        writeInt(0);
+        writeInt(0); // initial frames
+        writeInt(1); // streams
+        writeInt(0); // suggested buffer size
+        writeInt(width);
+        writeInt(height);
+        for (int i = 0; i < 4; ++i)
+            writeInt(0); // reserved
+
+        writeFourCC("LIST");
+        writeInt(4 + 8 + 56 + 8 + 40);
+        writeFourCC("strl");
+        writeFourCC("strh");
+        writeInt(56);
+        writeFourCC("vids");
+        writeFourCC("MJPG");
+        writeInt(0); // flags
+        writeInt(0); // priority and language
+        writeInt(0); // initial frames
+        writeInt(1); // scale
+        writeInt(framesPerSecond); // rate
+        writeInt(0); // start
+        lengthPosition = output.getFilePointer();
+        writeInt(0);
+        writeInt(0); // suggested buffer size
+        writeInt(-1); // quality
+        writeInt(0); // sample size
+        writeShort(0);
+        writeShort(0);
+        writeShort(width);
+        writeShort(height);
+
+        writeFourCC("strf");
+        writeInt(40);
+        writeInt(40); // size of the BITMAPINFOHEADER
+        writeInt(width);
+        writeInt(height);
+        writeShort(1); // planes
+        writeShort(24); // bits per pixel
+        writeFourCC("MJPG");
+        writeInt(width * height * 3);
+        for (int i = 0; i < 4; ++i)
+            writeInt(0); // resolution and colors
+
+        writeFourCC("LIST");
+        moviSizePosition = output.getFilePointer();
+        writeInt(0);
+        writeFourCC("movi");
+    }
+
+    void write(BufferedImage frame) throws IOException {
+        jpeg.reset();
+        if (!ImageIO.write(frame, "jpg", jpeg))
+            throw new IOException("no jpeg writer available.");
+        int size = jpeg.size();
+        writeFourCC("00dc");
+        writeInt(size);
+        frameChunks.add(new long[] {output.getFilePointer() - 8, size});
+        output.write(jpeg.toByteArray());
+        if (size % 2 == 1)
+            output.write(0); // chunks are word aligned.
+        maximumFrameSize = Math.max(maximumFrameSize, size);
+    }
+
+    void close() throws IOException {
+        try {
+            long moviEnd = output.getFilePointer();
+            long moviStart = moviSizePosition + 4;
+            writeFourCC("idx1");
+            writeInt(16 * frameChunks.size());
+            for (long[] chunk : frameChunks) {
+                writeFourCC("00dc");
+                writeInt(AVIIF_KEYFRAME);
+                writeInt((int) (chunk[0] - moviStart)); // offsets are relative to the movi list type.
+                writeInt((int) chunk[1]);
+            }
+            long end = output.getFilePointer();
+            output.seek(riffSizePosition);
+            writeInt((int) (end - 8));
+            output.seek(totalFramesPosition);
+            writeInt(frameChunks.size());
+            output.seek(lengthPosition);
+            writeInt(frameChunks.size());
+            output.seek(moviSizePosition);
+            writeInt((int) (moviEnd - moviSizePosition - 4));
+        } finally {
+            output.close();
+        }
+    }
+
+    private void writeFourCC(String fourCC) throws IOException {
+        output.writeBytes(fourCC);
+    }
+
+    // RIFF files are little endian.
+    private void writeInt(int value) throws IOException {
+        output.writeInt(Integer.reverseBytes(value));
+    }
+
+    private void writeShort(int value) throws IOException {
+        output.writeShort(Short.reverseBytes((short) value));
+    }
+}
@@ -0,0 +1,71 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import javax.imageio.ImageIO;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Random;
+
+// Random images of two classes for the benchmarks: rectangles that are reddish in positive and
+// greenish in negative samples, so that the classes are separable but not trivially so. Image
+// files are named like real training data, starting with p or n.
+class SyntheticImages {
+    final int width;
+    final int height;
+    private final Random random;
+
+    SyntheticImages(int width, int height, long seed) {
+        this.width = width;
+        this.height = height;
+        random = new Random(seed);
+    }
+
+    BufferedImage create(SampleType sampleType) {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
+        Graphics2D graphics = image.createGraphics();
+        for (int i = 0; i < 24; ++i) {
+            int tint = 64 + random.nextInt(192);
+            int other = random.nextInt(160);
+            int blue = random.nextInt(160);
+            graphics.setColor(sampleType == SampleType.POSITIVE ? new Color(tint, other, blue) : new Color(other, tint, blue));
+            graphics.fillRect(random.nextInt(width), random.nextInt(height), 16 + random.nextInt(width / 2), 16 + random.nextInt(height / 2));
+        }
+        graphics.dispose();
+        return image;
+    }
+
+    static String fileName(SampleType sampleType, int number) {
+        return (sampleType == SampleType.POSITIVE ? "p" : "n") + number + ".jpg";
+    }
+
+    // Writes numImages jpeg files to directory, alternating between positive and negative samples.
+    void write(File directory, int numImages) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs())
+            throw new IOException("could not create " + directory + ".");
+        for (int i = 0; i < numImages; ++i) {
+            SampleType sampleType = i % 2 == 0 ? SampleType.POSITIVE : SampleType.NEGATIVE;
+            ImageIO.write(create(sampleType), "jpg", new File(directory, fileName(sampleType, i)));
+        }
+    }
+}
@@ -0,0 +1,99 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+// Converting decoded video frames to images, and reading the expected sample type of documents,
+// which both happen once per classified frame or image.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UtilsBenchmark {
+    @State(Scope.Thread)
+    public static class Frame {
+        @Param({"640x480", "1920x1080"})
+        public String frameSize;
+
+        Mat mat;
+        BufferedImage image;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            String[] size = frameSize.split("x");
+            mat = new Mat(Integer.parseInt(size[1]), Integer.parseInt(size[0]), CvType.CV_8UC3);
+            Core.randu(mat, 0, 256);
+            image = Utils.mat2Img(mat);
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mat.release();
+        }
+    }
+
+    private Document labeledDocument;
+    private Document unlabeledDocument;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        // documents may carry their sample type, otherwise it is derived from the image path.
+        labeledDocument = new Document();
+        labeledDocument.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, "/data/images/p0001.jpg", Field.Store.YES));
+        labeledDocument.add(new StoredField(Utils.SAMPLE_TYPE_DESCRIPTOR_NAME, SampleType.POSITIVE.name()));
+        unlabeledDocument = new Document();
+        unlabeledDocument.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, "/data/images/n0001.jpg", Field.Store.YES));
+    }
+
+    @Benchmark
+    public BufferedImage mat2Img(Frame frame) {
+        return Utils.mat2Img(frame.mat);
+    }
+
+    @Benchmark
+    public BufferedImage mat2ImgReusingTarget(Frame frame) {
+        return Utils.mat2Img(frame.mat, frame.image);
+    }
+
+    @Benchmark
+    public SampleType getSampleTypeFromLabeledDocument() {
+        return Utils.getSampleTypeFromDocument(labeledDocument);
+    }
+
+    @Benchmark
+    public SampleType getSampleTypeFromImagePath() {
+        return Utils.getSampleTypeFromDocument(unlabeledDocument);
+    }
+}
@@ -0,0 +1,82 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Selecting the best matches of a query: offering the distances of all candidates to a selector,
+// and draining it in rank order. Distances are random, so most candidates are rejected once the
+// selector is full, as in a real search.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TopKSelectorBenchmark {
+    @Param({"77"})
+    public int capacity;
+
+    @Param({"1000", "100000"})
+    public int numCandidates;
+
+    private TopKSelector selector;
+    private float[] distances;
+    private byte[] labelColumn;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        selector = new TopKSelector(capacity);
+        Random random = new Random(42);
+        distances = new float[numCandidates];
+        labelColumn = new byte[numCandidates];
+        for (int i = 0; i < numCandidates; ++i) {
+            distances[i] = random.nextFloat() * 100;
+            labelColumn[i] = (byte) random.nextInt(2);
+        }
+    }
+
+    private void insertAll() {
+        selector.reset();
+        selector.setLabelColumn(labelColumn);
+        for (int docId = 0; docId < numCandidates; ++docId)
+            selector.insert(distances[docId], docId);
+    }
+
+    @Benchmark
+    public TopKSelector insert() {
+        insertAll();
+        return selector;
+    }
+
+    @Benchmark
+    public void insertAndDrain(Blackhole blackhole) {
+        insertAll();
+        selector.sort();
+        for (int rank = 0; rank < selector.size(); ++rank) {
+            blackhole.consume(selector.docId(rank));
+            blackhole.consume(selector.label(rank));
+        }
+    }
+}
@@ -0,0 +1,155 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.DocumentBuilder;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Set;
+
+// An index together with the sample type of each of its documents.
+// The labels are resolved once when the reader is opened, so that looking up the
+// sample type of a search hit only requires its docId.
+public class AugmentedIndexReader {
+    private static final SampleType[] sampleTypes = SampleType.values();
+    private static final int MAGIC = 0x4c41424c; // "LABL"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 20;
+    public static final String LABELS_SNAPSHOT_FILE_NAME = "labels.snapshot";
+
+    public IndexReader indexReader = null;
+    public SampleType sampleType = SampleType.INVALID;
+    private byte[] labels = null;
+
+    public AugmentedIndexReader(IndexReader r, SampleType t) throws IOException {
+        this(r, t, null);
+    }
+
+    // If snapshotDirectory is given, the labels are read from a snapshot written there by an earlier
+    // run, or a snapshot is written for the next one.
+    public AugmentedIndexReader(IndexReader r, SampleType t, File snapshotDirectory) throws IOException {
+        indexReader = r;
+        sampleType = t;
+        if (t != SampleType.INVALID) {
+            labels = new byte[r.maxDoc()];
+            Arrays.fill(labels, (byte) t.ordinal());
+            return;
+        }
+        if (snapshotDirectory == null) {
+            labels = readLabels(r);
+            return;
+        }
+        File snapshotFile = new File(snapshotDirectory, LABELS_SNAPSHOT_FILE_NAME);
+        long indexVersion = ((DirectoryReader) r).getVersion();
+        if (snapshotFile.exists())
+            labels = readSnapshot(snapshotFile, indexVersion, r.maxDoc());
+        if (labels == null) {
+            labels = readLabels(r);
+            try {
+                writeSnapshot(snapshotFile, indexVersion);
+            } catch (IOException e) {
+                System.out.println("could not write " + snapshotFile + ": " + e.getMessage());
+            }
+        }
+    }
+
+    private static byte[] readLabels(IndexReader r) throws IOException {
+        byte[] labels = new byte[r.maxDoc()];
+        Set<String> fieldsToLoad = Collections.singleton(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+        Bits liveDocs = MultiFields.getLiveDocs(r);
+        for (int docId = 0; docId < labels.length; ++docId) {
+            SampleType label = SampleType.INVALID;
+            if (liveDocs == null || liveDocs.get(docId)) {
+                String imagePath = r.document(docId, fieldsToLoad).get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+                if (imagePath != null)
+                    label = Utils.getSampleTypeFromName(imagePath);
+            }
+            labels[docId] = (byte) label.ordinal();
+        }
+        return labels;
+    }
+
+    // Written to a temporary file and renamed, so that readers never see half a snapshot.
+    private void writeSnapshot(File file, long indexVersion) throws IOException {
+        File temporaryFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(indexVersion);
+                out.writeInt(labels.length);
+                out.write(labels);
+            } finally {
+                out.close();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporaryFile.delete();
+        }
+    }
+
+    // Returns null if the snapshot does not belong to the given version of the index, or cannot be read.
+    private static byte[] readSnapshot(File file, long indexVersion, int maxDoc) {
+        if (file.length() != HEADER_SIZE + maxDoc)
+            return null;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != VERSION || in.readLong() != indexVersion || in.readInt() != maxDoc)
+                    return null;
+                byte[] labels = new byte[maxDoc];
+                in.readFully(labels);
+                for (byte label : labels)
+                    if (label < 0 || label >= sampleTypes.length)
+                        return null;
+                return labels;
+            } finally {
+                in.close();
+            }
+        } catch (IOException e) {
+            System.out.println("could not read " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    byte[] getLabels() {
+        return labels;
+    }
+
+    public SampleType getSampleType(int docId) {
+        return sampleTypes[labels[docId]];
+    }
+}
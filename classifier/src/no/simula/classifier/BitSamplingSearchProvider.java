@@ -0,0 +1,118 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import no.simula.common.Features;
+import no.simula.common.TopKSelector;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.*;
+import org.apache.lucene.search.similarities.DefaultSimilarity;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Map;
+import java.util.Set;
+
+// The same search as LIRE's BitSamplingImageSearcher: the documents sharing most hashes with
+// the query are taken as candidates and ranked by their actual feature distance.
+// Only the feature field of a candidate is loaded, and matches are reported by docId.
+public class BitSamplingSearchProvider implements SearchProvider {
+    private static final int numHashedResults = 1000;
+
+    private final String m_featureName;
+    private final String fieldName;
+    private final String hashesFieldName;
+    private final Set<String> fieldsToLoad;
+    private final LireFeature queryFeature;
+    private final LireFeature scratchFeature;
+    private final Map<IndexReader, IndexSearcher> searchers = new IdentityHashMap<IndexReader, IndexSearcher>();
+
+    // candidates are ranked by the number of hashes they share with the query.
+    private static class HashCountSimilarity extends DefaultSimilarity {
+        public float tf(float freq) { return 1f; }
+        public float idf(long docFreq, long numDocs) { return 1f; }
+        public float queryNorm(float sumOfSquaredWeights) { return 1f; }
+    }
+
+    BitSamplingSearchProvider(String featureName) throws ClassNotFoundException, IllegalAccessException, InstantiationException, IOException {
+        Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(Features.getClassName(featureName));
+        queryFeature = c.newInstance();
+        scratchFeature = c.newInstance();
+        fieldName = queryFeature.getFieldName();
+        hashesFieldName = fieldName + "_hash";
+        fieldsToLoad = Collections.singleton(fieldName);
+        m_featureName = featureName;
+        BitSampling.readHashFunctions();
+    }
+
+    public String featureName() { return m_featureName; }
+
+    private IndexSearcher getSearcher(IndexReader reader) {
+        IndexSearcher searcher = searchers.get(reader);
+        if (searcher == null) {
+            searcher = new IndexSearcher(reader);
+            searcher.setSimilarity(new HashCountSimilarity());
+            searchers.put(reader, searcher);
+        }
+        return searcher;
+    }
+
+    String fieldName() {
+        return fieldName;
+    }
+
+    // Parses the query feature of document and returns the docIds sharing most hashes with it.
+    ScoreDoc[] findCandidates(Document document, IndexReader reader) throws IOException {
+        BytesRef bytes = document.getBinaryValue(fieldName);
+        if (bytes == null)
+            throw new IOException("document does not contain feature " + m_featureName + ".");
+        queryFeature.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+
+        // the hashes are serialized exactly like GenericDocumentBuilder does when indexing.
+        String hashes = SerializationUtils.arrayToString(BitSampling.generateHashes(queryFeature.getDoubleHistogram()));
+        BooleanQuery query = new BooleanQuery();
+        for (String hash : hashes.trim().split("\\s+")) {
+            if (hash.length() > 0)
+                query.add(new BooleanClause(new TermQuery(new Term(hashesFieldName, hash)), BooleanClause.Occur.SHOULD));
+        }
+        return getSearcher(reader).search(query, numHashedResults).scoreDocs;
+    }
+
+    // The distance between the last query passed to findCandidates() and a candidate document,
+    // or NaN if the candidate does not contain this feature.
+    float distance(Document candidate) {
+        BytesRef candidateBytes = candidate.getBinaryValue(fieldName);
+        if (candidateBytes == null) return Float.NaN;
+        scratchFeature.setByteArrayRepresentation(candidateBytes.bytes, candidateBytes.offset, candidateBytes.length);
+        return queryFeature.getDistance(scratchFeature);
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector hits) throws IOException {
+        for (ScoreDoc candidate : findCandidates(document, reader))
+            hits.insert(distance(reader.document(candidate.doc, fieldsToLoad)), candidate.doc);
+    }
+}
@@ -48,6 +48,13 @@ public class Classification extends HashMap<String, SampleType> {
         expectedSampleType = Utils.getSampleTypeFromDocument(imageDocument);
     }
 
+    // The classification of a video frame that looks like the given key frame.
+    public Classification(Classification keyFrame, String imagePath) {
+        super(keyFrame);
+        this.imagePath = imagePath;
+        expectedSampleType = keyFrame.expectedSampleType;
+    }
+
     public void insert(String featureName, SampleType sampleType) {
         put(featureName, sampleType);
     }
@@ -30,6 +30,11 @@ public class ClassificationMetrics extends HashMap<String, ClassificationRate> {
         return super.get(featureName);
     }
 
+    public void add(ClassificationMetrics other) {
+        for (Entry<String, ClassificationRate> entry : other.entrySet())
+            get(entry.getKey()).add(entry.getValue());
+    }
+
     public void print()
     {
         System.out.println("\n- - - - - - - - - - - - - - - - - - - - - - - -");
@@ -26,6 +26,13 @@ public class ClassificationRate {
     public Utils.MutableInt falsePositives = new Utils.MutableInt();
     public Utils.MutableInt falseNegatives = new Utils.MutableInt();
 
+    public void add(ClassificationRate other) {
+        truePositives.add(other.truePositives.get());
+        trueNegatives.add(other.trueNegatives.get());
+        falsePositives.add(other.falsePositives.get());
+        falseNegatives.add(other.falseNegatives.get());
+    }
+
     public String toString() {
         double tp = truePositives.get();
         double tn = trueNegatives.get();
@@ -0,0 +1,208 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import no.simula.common.Features;
+import no.simula.common.ImageDecoder;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+// Classifies single images over HTTP, so that the training indices are only opened and loaded once
+// for any number of classifications. The server only listens on the loopback interface.
+//
+// POST /classify?path=/some/image.jpg     classifies an image file.
+// POST /classify?name=image.jpg           classifies the image in the request body.
+// POST /classify?name=image.jpg&JCD=...   classifies a document of pre-extracted features, given
+//                                         as the url encoded base64 of their byte representation.
+// The response is a json object of the identifier and the sample type detected by every feature.
+public class ClassificationServer {
+    private final Classifier classifier;
+    private final ArrayList<String> featureNames;
+    private final MeasureType measureType;
+    private final HashMap<String, String> fieldNames = new HashMap<String, String>();
+    private final DocumentBuilder builder;
+    private final int maxResolution;
+    private final HttpServer server;
+    private final ExecutorService pool;
+
+    public ClassificationServer(Classifier classifier, ArrayList<String> featureNames, MeasureType measureType, int maxResolution, int port) throws IOException {
+        this.classifier = classifier;
+        this.featureNames = featureNames;
+        this.measureType = measureType;
+        this.maxResolution = maxResolution;
+        for (String featureName : featureNames) {
+            try {
+                LireFeature feature = (LireFeature) Class.forName(Features.getClassName(featureName)).newInstance();
+                fieldNames.put(featureName, feature.getFieldName());
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+                throw new IOException("invalid feature name: " + featureName, e);
+            }
+        }
+        builder = Classifier.getCustomDocumentBuilder(featureNames, maxResolution); // shared by all request threads.
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/classify", this::handleClassify);
+        pool = Executors.newFixedThreadPool(classifier.getSearchThreads());
+        server.setExecutor(pool);
+    }
+
+    public void start() {
+        classifier.prepareSearch(featureNames);
+        server.start();
+        System.out.println("classification server listening on " + server.getAddress());
+    }
+
+    public void stop() {
+        server.stop(0);
+        pool.shutdown();
+    }
+
+    private void handleClassify(HttpExchange exchange) throws IOException {
+        if (!exchange.getRequestMethod().equals("POST")) {
+            exchange.getResponseHeaders().set("Allow", "POST");
+            respond(exchange, 405, "{\"error\": \"only POST is supported\"}");
+            return;
+        }
+        try {
+            Map<String, String> parameters = parseQuery(exchange.getRequestURI().getRawQuery());
+            Document document = createDocument(parameters, exchange.getRequestBody());
+            Classification classification = classifier.classify(document, featureNames, measureType);
+            respond(exchange, 200, toJson(classification));
+        } catch (IllegalArgumentException | IOException e) {
+            respond(exchange, 400, "{\"error\": " + quote(e.getMessage()) + "}");
+        } catch (Exception e) {
+            e.printStackTrace();
+            respond(exchange, 500, "{\"error\": " + quote(e.toString()) + "}");
+        }
+    }
+
+    private Document createDocument(Map<String, String> parameters, InputStream body) throws IOException {
+        String path = parameters.get("path");
+        if (path != null)
+            return extractFeatures(Files.readAllBytes(Paths.get(path)), path);
+
+        String name = parameters.containsKey("name") ? parameters.get("name") : "request";
+        // the sample type is taken from the first letter of the file name.
+        if (name.isEmpty() || name.endsWith(File.separator))
+            throw new IllegalArgumentException("name must be a file name");
+        boolean hasFeatures = false;
+        for (String featureName : featureNames)
+            hasFeatures |= parameters.containsKey(featureName);
+        if (!hasFeatures)
+            return extractFeatures(readAll(body), name);
+
+        Document document = new Document();
+        document.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, name, Field.Store.YES));
+        for (String featureName : featureNames) {
+            String value = parameters.get(featureName);
+            if (value == null)
+                throw new IllegalArgumentException("missing feature " + featureName);
+            document.add(new StoredField(fieldNames.get(featureName), Base64.getDecoder().decode(value)));
+        }
+        return document;
+    }
+
+    private Document extractFeatures(byte[] data, String identifier) throws IOException {
+        // decoded like the training images by the indexer, then the builder scales it to the maximum resolution.
+        BufferedImage image = ImageDecoder.read(data, maxResolution);
+        return builder.createDocument(image, identifier);
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int length;
+        while ((length = input.read(buffer)) > 0)
+            output.write(buffer, 0, length);
+        return output.toByteArray();
+    }
+
+    private static Map<String, String> parseQuery(String query) throws IOException {
+        HashMap<String, String> parameters = new HashMap<String, String>();
+        if (query == null)
+            return parameters;
+        for (String parameter : query.split("&")) {
+            int separator = parameter.indexOf('=');
+            if (separator < 0)
+                parameters.put(URLDecoder.decode(parameter, "UTF-8"), "");
+            else
+                parameters.put(URLDecoder.decode(parameter.substring(0, separator), "UTF-8"), URLDecoder.decode(parameter.substring(separator + 1), "UTF-8"));
+        }
+        return parameters;
+    }
+
+    private static String toJson(Classification classification) {
+        StringBuilder json = new StringBuilder();
+        json.append("{\"image\": ").append(quote(classification.getImagePath()));
+        for (Map.Entry<String, SampleType> entry : classification.entrySet())
+            json.append(", ").append(quote(entry.getKey())).append(": ").append(quote(entry.getValue().toString()));
+        return json.append("}").toString();
+    }
+
+    private static String quote(String value) {
+        if (value == null)
+            return "null";
+        StringBuilder quoted = new StringBuilder("\"");
+        for (char c : value.toCharArray()) {
+            if (c == '"' || c == '\\')
+                quoted.append('\\').append(c);
+            else if (c < 0x20)
+                quoted.append(String.format("\\u%04x", (int) c));
+            else
+                quoted.append(c);
+        }
+        return quoted.append('"').toString();
+    }
+
+    private static void respond(HttpExchange exchange, int status, String json) throws IOException {
+        byte[] response = json.getBytes("UTF-8");
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, response.length);
+        OutputStream output = exchange.getResponseBody();
+        try {
+            output.write(response);
+        } finally {
+            output.close();
+        }
+    }
+}
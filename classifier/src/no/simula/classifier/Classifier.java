@@ -19,88 +19,351 @@
 
 package no.simula.classifier;
 
-import net.semanticmetadata.lire.AbstractImageSearcher;
 import net.semanticmetadata.lire.DocumentBuilder;
-import net.semanticmetadata.lire.ImageSearchHits;
 import net.semanticmetadata.lire.imageanalysis.*;
 import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
 import net.semanticmetadata.lire.imageanalysis.joint.LocalBinaryPatternsAndOpponent;
 import net.semanticmetadata.lire.imageanalysis.joint.RankAndOpponent;
-import net.semanticmetadata.lire.impl.BitSamplingImageSearcher;
-import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
-import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
 import org.apache.lucene.document.StoredField;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.store.FSDirectory;
 import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.util.Bits;
 import org.opencv.core.Core;
 import org.opencv.core.Mat;
+import org.opencv.core.Size;
 import org.opencv.highgui.Highgui;
 import org.opencv.highgui.VideoCapture;
+import org.opencv.imgproc.Imgproc;
+import no.simula.common.FeatureMatrix;
+import no.simula.common.Features;
+import no.simula.common.HnswGraph;
+import no.simula.common.MultiFeatureDocumentBuilder;
+import no.simula.common.ProductQuantizer;
+import no.simula.common.StageMetrics;
+import no.simula.common.StageQueue;
+import no.simula.common.StageTimer;
+import no.simula.common.TopKSelector;
 
 import java.awt.image.BufferedImage;
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Classifier {
     private static final int maximumHits = 77;
     private static final int CV_CAP_PROP_POS_FRAMES = 1;
     private static final int CV_CAP_PROP_FRAME_COUNT = 7;
+    public static final int videoSegmentFrames = 1024;
     private Boolean silent = false;
     private ExecutorService pool = null;
-    private int currentProgress = 0;
-    private int i_inputIndexReaders = 0;
-    private int i_document = 0;
-    private int i_totalDocument = 0;
+    private static final int inputRangeSize = 64;
+    private volatile int currentProgress = 0;
+    private AtomicInteger processedDocuments = new AtomicInteger();
     private int totalDocuments = 0;
     private int numThreads = 1;
-    private boolean finishedReadingVideo = false;
+    private int extractionThreads = 0;
+    private int decodeThreads = 1;
+    private double sceneThreshold = 0;
+    private int maxResolution = 0;
+    private int maxSkippedFrames = 30;
+    private AtomicInteger reusedFrames = new AtomicInteger();
+    private ArrayBlockingQueue<BufferedImage> frameBuffers = null; // images whose features were extracted, to be decoded into again.
+    private int queueSize = 0;
+    private volatile String progressDetails = null;
     private ArrayList<AugmentedIndexReader> indexReaders = new ArrayList<AugmentedIndexReader>();
+    private TrainingIndex trainingIndex = null;
     private ArrayList<AugmentedIndexReader> inputIndexReaders = new ArrayList<AugmentedIndexReader>();
-    private LinkedList<Document> videoFrames = new LinkedList<Document>();
-
-    private class AugmentedIndexReader {
-        public AugmentedIndexReader(IndexReader r, SampleType t) {
-            indexReader = r;
-            sampleType = t;
-        }
-        public IndexReader indexReader = null;
-        public SampleType sampleType = SampleType.INVALID;
+    private ArrayList<InputRange> inputRanges = new ArrayList<InputRange>();
+    private AtomicInteger nextInputRange = new AtomicInteger();
+    private SearchEngine searchEngine = SearchEngine.BIT_SAMPLING;
+    private boolean fusedSearch = false;
+    private ThreadLocal<TopKSelector> selectors = ThreadLocal.withInitial(() -> new TopKSelector(maximumHits));
+    // the search provider and selectors of every thread classifying single documents.
+    private ThreadLocal<MultiFeatureSearchProvider> threadSearchProviders = new ThreadLocal<MultiFeatureSearchProvider>();
+    private ThreadLocal<TopKSelector[]> threadSelectors = new ThreadLocal<TopKSelector[]>();
+    private HashMap<String, Map<IndexReader, FeatureMatrix>> featureMatrices = new HashMap<String, Map<IndexReader, FeatureMatrix>>();
+    private HashMap<String, HnswGraph[]> graphs = new HashMap<String, HnswGraph[]>();
+    private int efSearch = 100;
+    private HashMap<String, ProductQuantizer[]> quantizers = new HashMap<String, ProductQuantizer[]>();
+    private int rerank = 0;
+    // null keeps the classifications of datasets, but not the frames of videos, which only go to resultSink.
+    private Boolean keepClassifications = null;
+    private ResultSink resultSink = null;
+    private boolean useSnapshots = false;
+    private static final long preloadChunkSize = 64 << 20;
+    // the stages of classification, the searches are timed by the search providers.
+    private static final StageTimer fetchTimer = StageMetrics.timer("classify.fetch");
+    private static final StageTimer voteTimer = StageMetrics.timer("classify.vote");
+    private static final StageTimer fusionTimer = StageMetrics.timer("classify.fusion");
+    private static final StageTimer insertTimer = StageMetrics.timer("classify.insert");
+    private static final StageTimer decodeTimer = StageMetrics.timer("video.decode");
+    private static final StageTimer resizeTimer = StageMetrics.timer("video.resize");
+    private static final StageTimer mat2ImgTimer = StageMetrics.timer("video.mat2Img");
+    private static final StageTimer extractionTimer = StageMetrics.timer("video.extract");
 
+    public Classifier(HashMap<String, SampleType> indexPaths, Boolean silent) throws IOException {
+        this(indexPaths, silent, false, false);
     }
 
-
-    public Classifier(HashMap<String, SampleType> indexPaths, Boolean silent) throws IOException {
+    // preload reads all files of the training indices in parallel before they are opened.
+    // With useSnapshots the decoded labels and feature matrices of the training indices are read
+    // from snapshots next to the indices, which are written when they are missing or outdated.
+    public Classifier(HashMap<String, SampleType> indexPaths, Boolean silent, boolean preload, boolean useSnapshots) throws IOException {
         this.silent = silent;
+        this.useSnapshots = useSnapshots;
         numThreads = Runtime.getRuntime().availableProcessors() / 2; // most of our machines have hyper threading.
         if (numThreads < 1) numThreads = 1;
-        System.out.println("using " + numThreads + " threads for classifying.");
+        if (preload)
+            preloadIndexFiles(indexPaths.keySet());
         Iterator it = indexPaths.entrySet().iterator();
         while (it.hasNext()) {
             HashMap.Entry indexLocationInformation = (HashMap.Entry)it.next();
             String indexPath = (String)indexLocationInformation.getKey();
             SampleType indexSampleType = (SampleType)indexLocationInformation.getValue();
             IndexReader indexReader = DirectoryReader.open(MMapDirectory.open(new File(indexPath)));
-            indexReaders.add(new AugmentedIndexReader(indexReader, indexSampleType));
+            indexReaders.add(new AugmentedIndexReader(indexReader, indexSampleType, useSnapshots ? new File(indexPath) : null));
         }
+        trainingIndex = new TrainingIndex(indexReaders);
+    }
+
+    // Reads every file of the given indices once, in chunks spread over numThreads threads, so that
+    // the memory mapped index is in the page cache before the first searches fault it in page by page.
+    private void preloadIndexFiles(Collection<String> indexPaths) {
+        long startTime = System.currentTimeMillis();
+        long totalSize = 0;
+        ExecutorService preloadPool = Executors.newFixedThreadPool(numThreads);
+        for (String indexPath : indexPaths) {
+            File[] files = new File(indexPath).listFiles();
+            if (files == null) continue;
+            for (File file : files) {
+                if (!file.isFile()) continue;
+                totalSize += file.length();
+                for (long position = 0; position < file.length(); position += preloadChunkSize) {
+                    final long chunkStart = position;
+                    preloadPool.execute(() -> {
+                        try {
+                            preloadChunk(file, chunkStart);
+                        } catch (IOException e) {
+                            System.out.println("could not preload " + file + ": " + e.getMessage());
+                        }
+                    });
+                }
+            }
+        }
+        preloadPool.shutdown();
+        try {
+            preloadPool.awaitTermination(365, TimeUnit.DAYS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        System.out.println("preloaded " + totalSize / (1 << 20) + " MB of training indices in " + (System.currentTimeMillis() - startTime) / 1000.0f + " seconds.");
+    }
+
+    private static void preloadChunk(File file, long position) throws IOException {
+        RandomAccessFile input = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = input.getChannel();
+            long length = Math.min(preloadChunkSize, channel.size() - position);
+            if (length > 0)
+                channel.map(FileChannel.MapMode.READ_ONLY, position, length).load();
+        } finally {
+            input.close();
+        }
+    }
+
+    // The number of threads searching the training data. Half the available processors by default.
+    public void setSearchThreads(int searchThreads) {
+        if (searchThreads > 0)
+            numThreads = searchThreads;
+    }
+
+    public int getSearchThreads() {
+        return numThreads;
+    }
+
+    // The number of threads decoding a video. Every thread has its own VideoCapture and decodes
+    // segments of videoSegmentFrames frames, which are handed out in order.
+    public void setDecodeThreads(int decodeThreads) {
+        if (decodeThreads > 0)
+            this.decodeThreads = decodeThreads;
     }
 
-    public class SearchProvider extends BitSamplingImageSearcher {
-        SearchProvider(int maximumHits, String featureName, String featureDescriptor) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
-            super(maximumHits
-                    , featureDescriptor
-                    , featureDescriptor + "_hash"
-                    , (LireFeature) Class.forName(getClassName(featureName)).newInstance()
-                    , 1000);
-            m_featureName = featureName;
-        };
-        private String m_featureName;
-        public String featureName() { return m_featureName; }
+    // If positive, video frames whose thumbnail differs by at most sceneThreshold from the last
+    // classified (key) frame reuse its classification, but at most maxSkippedFrames in a row.
+    public void setSceneThreshold(double sceneThreshold) {
+        this.sceneThreshold = sceneThreshold;
+    }
+
+    public void setMaxSkippedFrames(int maxSkippedFrames) {
+        this.maxSkippedFrames = maxSkippedFrames;
+    }
+
+    // If positive, larger video frames are shrunk to at most maxResolution pixels wide or high before
+    // their features are extracted, like the indexer does for images.
+    public void setMaxResolution(int maxResolution) {
+        this.maxResolution = maxResolution;
+    }
+
+    // The number of threads extracting the features of video frames. The same as searching by default.
+    public void setExtractionThreads(int extractionThreads) {
+        this.extractionThreads = extractionThreads;
+    }
+
+    // The capacity of the queues between the stages of video classification. Twice the number of
+    // threads taking from a queue by default.
+    public void setQueueSize(int queueSize) {
+        this.queueSize = queueSize;
+    }
+
+    public void setSearchEngine(SearchEngine searchEngine) {
+        this.searchEngine = searchEngine;
+    }
+
+    public void setFusedSearch(boolean fusedSearch) {
+        this.fusedSearch = fusedSearch;
+    }
+
+    public void setEfSearch(int efSearch) {
+        this.efSearch = efSearch;
+    }
+
+    public void setRerank(int rerank) {
+        this.rerank = rerank;
+    }
+
+    // If false, the returned ClassificationList is empty, and for a dataset only holds the metrics.
+    // By default only the classifications of datasets are kept.
+    public void setKeepClassifications(boolean keepClassifications) {
+        this.keepClassifications = keepClassifications;
+    }
+
+    // Classifications are passed to resultSink as soon as they are produced.
+    public void setResultSink(ResultSink resultSink) {
+        this.resultSink = resultSink;
+    }
+
+    private void writeResult(ClassificationList threadClassificationList, Classification classification) throws IOException {
+        long startTime = insertTimer.start();
+        threadClassificationList.insert(classification);
+        if (resultSink != null)
+            resultSink.write(classification);
+        insertTimer.stop(startTime);
+    }
+
+    private static ClassificationList mergeClassificationLists(List<ClassificationList> threadClassifications, ClassificationList classificationList) {
+        for (ClassificationList threadClassificationList : threadClassifications)
+            classificationList.merge(threadClassificationList);
+        return classificationList;
+    }
+
+    private static File getIndexDirectory(IndexReader reader) {
+        return ((FSDirectory) ((DirectoryReader) reader).directory()).getDirectory();
+    }
+
+    // The codes of every training index, in the order of the parts of trainingIndex.
+    private synchronized ProductQuantizer[] getQuantizers(String featureName) throws IOException {
+        ProductQuantizer[] featureQuantizers = quantizers.get(featureName);
+        if (featureQuantizers == null) {
+            featureQuantizers = new ProductQuantizer[trainingIndex.numParts()];
+            for (int i = 0; i < featureQuantizers.length; ++i) {
+                AugmentedIndexReader augmentedReader = trainingIndex.part(i);
+                File indexDirectory = getIndexDirectory(augmentedReader.indexReader);
+                File quantizerFile = ProductQuantizer.getFile(indexDirectory, featureName);
+                if (!quantizerFile.exists())
+                    throw new IOException("no product quantization codes for " + featureName + " in " + indexDirectory + ", run the indexer with -quantize.");
+                ProductQuantizer quantizer = ProductQuantizer.read(quantizerFile);
+                if (quantizer.numRows() != augmentedReader.indexReader.maxDoc())
+                    throw new IOException(quantizerFile + " does not match its index, run the indexer with -quantize again.");
+                featureQuantizers[i] = quantizer;
+            }
+            quantizers.put(featureName, featureQuantizers);
+        }
+        return featureQuantizers;
+    }
+
+    // The graphs of every training index, in the order of the parts of trainingIndex.
+    private synchronized HnswGraph[] getGraphs(String featureName) throws IOException {
+        HnswGraph[] featureGraphs = graphs.get(featureName);
+        if (featureGraphs == null) {
+            featureGraphs = new HnswGraph[trainingIndex.numParts()];
+            for (int i = 0; i < featureGraphs.length; ++i) {
+                AugmentedIndexReader augmentedReader = trainingIndex.part(i);
+                File indexDirectory = getIndexDirectory(augmentedReader.indexReader);
+                File graphFile = HnswGraph.getFile(indexDirectory, featureName);
+                if (!graphFile.exists())
+                    throw new IOException("no graph for " + featureName + " in " + indexDirectory + ", run the indexer with -graph.");
+                HnswGraph graph = HnswGraph.read(graphFile);
+                if (graph.numRows() != augmentedReader.indexReader.maxDoc())
+                    throw new IOException(graphFile + " does not match its index, run the indexer with -graph again.");
+                featureGraphs[i] = graph;
+            }
+            graphs.put(featureName, featureGraphs);
+        }
+        return featureGraphs;
+    }
+
+    private synchronized Map<IndexReader, FeatureMatrix> getFeatureMatrices(String featureName) throws IOException {
+        Map<IndexReader, FeatureMatrix> matrices = featureMatrices.get(featureName);
+        if (matrices == null) {
+            System.out.println("loading " + featureName + " into memory.");
+            long startTime = System.currentTimeMillis();
+            // the training indices are loaded in parallel and then joined like trainingIndex joins their readers.
+            ArrayList<Future<FeatureMatrix>> parts = new ArrayList<Future<FeatureMatrix>>();
+            ExecutorService loadingPool = Executors.newFixedThreadPool(Math.min(numThreads, trainingIndex.numParts()));
+            for (int i = 0; i < trainingIndex.numParts(); ++i) {
+                AugmentedIndexReader augmentedReader = trainingIndex.part(i);
+                parts.add(loadingPool.submit(() -> loadFeatureMatrix(augmentedReader.indexReader, featureName)));
+            }
+            loadingPool.shutdown();
+            ArrayList<FeatureMatrix> partMatrices = new ArrayList<FeatureMatrix>();
+            try {
+                for (Future<FeatureMatrix> part : parts)
+                    partMatrices.add(part.get());
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException)
+                    throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+            matrices = new IdentityHashMap<IndexReader, FeatureMatrix>();
+            matrices.put(trainingIndex.indexReader, FeatureMatrix.concatenate(featureName, partMatrices));
+            featureMatrices.put(featureName, matrices);
+            System.out.println("loaded " + featureName + " in " + (System.currentTimeMillis() - startTime) / 1000.0f + " seconds.");
+        }
+        return matrices;
+    }
+
+    private FeatureMatrix loadFeatureMatrix(IndexReader reader, String featureName) throws IOException {
+        if (!useSnapshots)
+            return new FeatureMatrix(reader, featureName);
+        File snapshotFile = FeatureMatrix.getSnapshotFile(getIndexDirectory(reader), featureName);
+        long indexVersion = ((DirectoryReader) reader).getVersion();
+        FeatureMatrix matrix = null;
+        if (snapshotFile.exists())
+            matrix = FeatureMatrix.readSnapshot(snapshotFile, featureName, indexVersion, reader.maxDoc());
+        if (matrix == null) {
+            matrix = new FeatureMatrix(reader, featureName);
+            try {
+                matrix.writeSnapshot(snapshotFile, indexVersion);
+            } catch (IOException e) {
+                System.out.println("could not write " + snapshotFile + ": " + e.getMessage());
+            }
+        }
+        return matrix;
     }
 
     private void initializeInputReaders(HashMap<String, SampleType> inputDataIndices) {
@@ -118,42 +381,60 @@ public class Classifier {
             }
             inputIndexReaders.add(augmentedReader);
             totalDocuments += augmentedReader.indexReader.numDocs();
+            Bits liveDocs = MultiFields.getLiveDocs(augmentedReader.indexReader);
+            int maxDoc = augmentedReader.indexReader.maxDoc();
+            for (int start = 0; start < maxDoc; start += inputRangeSize)
+                inputRanges.add(new InputRange(augmentedReader, liveDocs, start, Math.min(start + inputRangeSize, maxDoc)));
         }
     }
 
-    private synchronized Document getNextDocument() throws IOException {
-        while (i_inputIndexReaders < inputIndexReaders.size()) {
-            AugmentedIndexReader augmentedReader = inputIndexReaders.get(i_inputIndexReaders);
-            if (i_document < augmentedReader.indexReader.numDocs()) {
-                updateProgress(i_totalDocument++);
-                Document d = augmentedReader.indexReader.document(i_document++);
-                addSampleTypeToDocument(d, augmentedReader.sampleType);
-                return d;
-            } else {
-                ++i_inputIndexReaders;
-                i_document = 0;
-            }
+    // A range of docIds of an input index. Workers claim whole ranges, so that the only shared
+    // state while classifying a dataset is the cursor over the ranges.
+    private static class InputRange {
+        final AugmentedIndexReader augmentedReader;
+        final Bits liveDocs;
+        final int start;
+        final int end;
+
+        InputRange(AugmentedIndexReader augmentedReader, Bits liveDocs, int start, int end) {
+            this.augmentedReader = augmentedReader;
+            this.liveDocs = liveDocs;
+            this.start = start;
+            this.end = end;
         }
-        return null;
     }
 
-    private void updateProgress(int i_document) {
-        showProgress(i_document, totalDocuments);
+    private InputRange getNextInputRange() {
+        int i = nextInputRange.getAndIncrement();
+        return i < inputRanges.size() ? inputRanges.get(i) : null;
     }
 
-    synchronized private void incrementProcessedFramesCount()
-    {
-        showProgress(i_totalDocument++, totalDocuments);
+    private void incrementProcessedDocumentsCount() {
+        int processed = processedDocuments.incrementAndGet();
+        // only take the lock of showProgress if there is a new percentage to print.
+        if (silent || (int) (100.0 / (float) totalDocuments * (float) processed) <= currentProgress) return;
+        showProgress(processed, totalDocuments);
     }
 
-    private ArrayList<SearchProvider> setupSearchProviders(ArrayList<String> featureNames) {
+    ArrayList<SearchProvider> setupSearchProviders(ArrayList<String> featureNames) {
         ArrayList<SearchProvider> searchProviders = new ArrayList<SearchProvider>(featureNames.size());
         for (String featureName : featureNames) {
             try {
-                String className = getClassName(featureName);
-                Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(className);
-                String featureDescriptor = c.newInstance().getFieldName();
-                SearchProvider searchProvider = new SearchProvider(maximumHits, featureName, featureDescriptor);
+                SearchProvider searchProvider = null;
+                switch (searchEngine) {
+                    case BIT_SAMPLING:
+                        searchProvider = new BitSamplingSearchProvider(featureName);
+                        break;
+                    case FLAT:
+                        searchProvider = new FlatSearchProvider(featureName, getFeatureMatrices(featureName));
+                        break;
+                    case HNSW:
+                        searchProvider = new HnswSearchProvider(featureName, getFeatureMatrices(featureName), trainingIndex, getGraphs(featureName), efSearch);
+                        break;
+                    case PQ:
+                        searchProvider = new PqSearchProvider(featureName, trainingIndex, getQuantizers(featureName), rerank);
+                        break;
+                }
                 searchProviders.add(searchProvider);
             } catch(Exception e) {
                 e.printStackTrace();
@@ -163,85 +444,321 @@ public class Classifier {
         return searchProviders;
     }
 
+    private MultiFeatureSearchProvider setupSearchProvider(ArrayList<String> featureNames) {
+        ArrayList<SearchProvider> searchProviders = setupSearchProviders(featureNames);
+        if (!fusedSearch)
+            return new SequentialSearchProvider(searchProviders);
+        switch (searchEngine) {
+            case BIT_SAMPLING: {
+                ArrayList<BitSamplingSearchProvider> providers = new ArrayList<BitSamplingSearchProvider>();
+                for (SearchProvider searchProvider : searchProviders)
+                    providers.add((BitSamplingSearchProvider) searchProvider);
+                return new FusedBitSamplingSearchProvider(providers);
+            }
+            case FLAT: {
+                ArrayList<FlatSearchProvider> providers = new ArrayList<FlatSearchProvider>();
+                for (SearchProvider searchProvider : searchProviders)
+                    providers.add((FlatSearchProvider) searchProvider);
+                return new FusedFlatSearchProvider(providers);
+            }
+            case HNSW:
+            case PQ:
+                break; // every feature has its own graph or codes, so there is nothing to share.
+        }
+        return new SequentialSearchProvider(searchProviders);
+    }
+
     public static DocumentBuilder getCustomDocumentBuilder(ArrayList<String> featureNames) {
-        ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
-        for (String featureName : featureNames)
-            try {
-                String className = getClassName(featureName);
-                Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(className);
-                builder.addBuilder(new GenericDocumentBuilder(c, true));
-            } catch (ClassNotFoundException e) {
-                System.out.println("invalid feature name: " + featureName);
-                System.exit(-1);
-                e.printStackTrace();
+        return getCustomDocumentBuilder(featureNames, 0);
+    }
+
+    // A builder that scales images down to maxResolution, if positive.
+    public static DocumentBuilder getCustomDocumentBuilder(ArrayList<String> featureNames, int maxResolution) {
+        try {
+            return new MultiFeatureDocumentBuilder(featureNames, maxResolution);
+        } catch (ClassNotFoundException e) {
+            System.out.println("invalid feature name: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(-1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
+    }
+
+    // A frame on its way through the video pipeline. The image is replaced by its document once
+    // the features are extracted.
+    private static class VideoFrame {
+        BufferedImage image;
+        Document document = null;
+        final int number;
+        final KeyFrame keyFrame;
+
+        VideoFrame(BufferedImage image, int number, KeyFrame keyFrame) {
+            this.image = image;
+            this.number = number;
+            this.keyFrame = keyFrame;
+        }
+    }
+    private static final VideoFrame endOfFrames = new VideoFrame(null, -1, null);
+
+    // The classification of a key frame, which is reused for the following frames that look alike.
+    // Frames that follow before the key frame is classified are written once it is.
+    private class KeyFrame {
+        private Classification classification = null;
+        private ArrayList<Integer> followers = new ArrayList<Integer>();
+        private boolean failed = false;
+
+        // Writes frameNumber with the classification of the key frame, now or once it is known.
+        // Returns false if the key frame could not be classified, so that the frame has to be classified itself.
+        synchronized boolean addFollower(int frameNumber, ClassificationList threadClassificationList) throws IOException {
+            if (failed) return false;
+            if (followers != null)
+                followers.add(frameNumber);
+            else
+                writeFollower(threadClassificationList, classification, frameNumber);
+            return true;
+        }
+
+        // Returns the followers waiting for the classification.
+        synchronized ArrayList<Integer> setClassification(Classification classification) {
+            this.classification = classification;
+            ArrayList<Integer> waitingFollowers = followers;
+            followers = null;
+            return waitingFollowers;
+        }
+
+        // Returns the followers that were waiting for the classification, which are lost with the key frame.
+        synchronized ArrayList<Integer> fail() {
+            failed = true;
+            ArrayList<Integer> waitingFollowers = followers;
+            followers = null;
+            return waitingFollowers;
+        }
+    }
+
+    // Decodes the frames start < number <= end of capture (up to the end of the video if end is negative)
+    // and passes them on to frames. The capture must be positioned at start. If there is a detector, only
+    // frames that differ from the last key frame are passed on, and the others reuse its classification.
+    private void decodeFrames(VideoCapture capture, Mat frameMat, int start, int end, SceneChangeDetector detector, StageQueue<VideoFrame> frames, ClassificationList threadClassificationList) throws IOException, InterruptedException {
+        KeyFrame keyFrame = null;
+        Mat scaledMat = maxResolution > 0 ? new Mat() : null;
+        if (detector != null)
+            detector.reset();
+        boolean seeking = start > 0;
+        int seekDistance = 0;
+        for (long startTime = decodeTimer.start(); capture.read(frameMat); startTime = decodeTimer.start()) {
+            decodeTimer.stop(startTime);
+            // CV_CAP_PROP_POS_FRAMES is the number of the next frame, which is the 1 based number of the frame just read.
+            int pos = (int) capture.get(CV_CAP_PROP_POS_FRAMES);
+            if (seeking) {
+                // seeking may also stop after start (e.g. with FFmpeg), then we seek further back, up to the
+                // beginning of the video. Frames that still cannot be reached are reported and skipped.
+                if (pos > start + 1 && seekDistance < start) {
+                    seekDistance = seekDistance == 0 ? videoSegmentFrames : 2 * seekDistance;
+                    capture.set(CV_CAP_PROP_POS_FRAMES, Math.max(0, start - seekDistance));
+                    continue;
+                }
+                if (pos > start + 1) {
+                    System.out.println("seeking to frame " + start + " went past it.");
+                    ArrayList<Integer> missedFrames = new ArrayList<Integer>();
+                    for (int frameNumber = start + 1; frameNumber < pos && (end < 0 || frameNumber <= end); ++frameNumber)
+                        missedFrames.add(frameNumber);
+                    skipFrames(missedFrames);
+                }
+                seeking = false;
             }
-        return builder;
+            if (pos <= start) continue; // seeking stopped before the segment.
+            if (end >= 0 && pos > end) break;
+            if (detector == null) {
+                frames.put(new VideoFrame(toImage(frameMat, scaledMat), pos, null));
+                continue;
+            }
+            if (!detector.isSceneChange(frameMat) && keyFrame != null) {
+                if (keyFrame.addFollower(pos, threadClassificationList)) {
+                    reusedFrames.incrementAndGet();
+                    continue;
+                }
+                // the features of the key frame could not be extracted, so this frame replaces it.
+                detector.reset();
+                detector.isSceneChange(frameMat);
+            }
+            keyFrame = new KeyFrame();
+            frames.put(new VideoFrame(toImage(frameMat, scaledMat), pos, keyFrame));
+        }
     }
 
-    private void enqueueVideoFrame(Document doc) {
-        synchronized (videoFrames) {
-            videoFrames.addFirst(doc);
-            videoFrames.notify();
+    // Copies a decoded frame into a recycled image, shrunk to maxResolution if it is larger.
+    private BufferedImage toImage(Mat frameMat, Mat scaledMat) {
+        int longerSide = Math.max(frameMat.cols(), frameMat.rows());
+        Mat imageMat = frameMat;
+        if (maxResolution > 0 && longerSide > maxResolution) {
+            long startTime = resizeTimer.start();
+            double scale = (double) maxResolution / longerSide;
+            Size size = new Size(Math.round(frameMat.cols() * scale), Math.round(frameMat.rows() * scale));
+            Imgproc.resize(frameMat, scaledMat, size, 0, 0, Imgproc.INTER_AREA);
+            imageMat = scaledMat;
+            resizeTimer.stop(startTime);
         }
+        long startTime = mat2ImgTimer.start();
+        BufferedImage image = Utils.mat2Img(imageMat, frameBuffers.poll());
+        mat2ImgTimer.stop(startTime);
+        return image;
     }
-    private Document dequeueVideoFrame() throws InterruptedException {
-        synchronized(videoFrames) {
-            while (videoFrames.isEmpty()) {
-                if (finishedReadingVideo)
-                    return null;
-                videoFrames.wait();
+
+    // Frames that could not be classified are reported, and skipped by the result sink instead of being waited for.
+    private void skipFrames(ArrayList<Integer> frameNumbers) throws IOException {
+        System.out.println("could not classify frames " + frameNumbers);
+        for (int frameNumber : frameNumbers) {
+            incrementProcessedDocumentsCount();
+            if (resultSink != null)
+                resultSink.skip(String.valueOf(frameNumber));
+        }
+    }
+
+    private void writeFollower(ClassificationList threadClassificationList, Classification keyFrameClassification, int frameNumber) throws IOException {
+        incrementProcessedDocumentsCount();
+        writeResult(threadClassificationList, new Classification(keyFrameClassification, String.valueOf(frameNumber)));
+    }
+
+    private void awaitPoolTermination() {
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(365, TimeUnit.DAYS)) { // we are waiting for a whole year.
+                pool.shutdownNow();
+                if (!pool.awaitTermination(60, TimeUnit.SECONDS))
+                    System.err.println("Pool did not terminate");
             }
-            return videoFrames.removeLast();
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
         }
     }
 
+    // Frames are decoded by decodeThreads, their features are extracted by extractionThreads and
+    // classified by numThreads. The stages are connected by bounded queues, so that decoding
+    // waits for the slowest stage and memory does not grow with the length of the video.
     public ClassificationList classifyVideo(String inputVideo, ArrayList<String> featureNames, MeasureType measureType) throws IOException {
-        ClassificationList classificationList = new ClassificationList();
+        final boolean keepFrames = keepClassifications != null && keepClassifications;
+        ClassificationList classificationList = new ClassificationList(keepFrames, false);
         VideoCapture capture = new VideoCapture(inputVideo);
         totalDocuments = (int)capture.get(CV_CAP_PROP_FRAME_COUNT);
         Mat frameMat = new Mat();
-        DocumentBuilder builder = getCustomDocumentBuilder(featureNames);
-        pool = Executors.newFixedThreadPool(numThreads);
+        final int numDecodeThreads = totalDocuments > 0 ? decodeThreads : 1; // we can only split videos of known length.
+        final int numExtractionThreads = extractionThreads > 0 ? extractionThreads : numThreads;
+        StageQueue<VideoFrame> frames = new StageQueue<VideoFrame>("decoded frames", queueSize > 0 ? queueSize : 2 * numExtractionThreads);
+        // every image that can be queued or in use at the same time.
+        frameBuffers = new ArrayBlockingQueue<BufferedImage>(frames.capacity() + numDecodeThreads + numExtractionThreads);
+        StageQueue<VideoFrame> documents = new StageQueue<VideoFrame>("extracted features", queueSize > 0 ? queueSize : 2 * numThreads);
+        AtomicInteger remainingDecodeThreads = new AtomicInteger(numDecodeThreads);
+        AtomicInteger remainingExtractionThreads = new AtomicInteger(numExtractionThreads);
+        AtomicInteger nextSegment = new AtomicInteger();
+        System.out.println("using " + numDecodeThreads + " threads for decoding, " + numExtractionThreads + " threads for feature extraction and " + numThreads + " threads for classifying.");
+        pool = Executors.newFixedThreadPool(numDecodeThreads + numExtractionThreads + numThreads);
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        monitor.scheduleAtFixedRate(() -> {
+            frames.sample();
+            documents.sample();
+            progressDetails = frames + ", " + documents;
+        }, 100, 100, TimeUnit.MILLISECONDS);
+
+        if (numDecodeThreads > 1)
+            capture.release(); // every decoding thread opens the video itself.
+        ArrayList<ClassificationList> threadClassifications = new ArrayList<ClassificationList>();
+        for (int runnableId = 0; runnableId < numDecodeThreads; ++runnableId) {
+            ClassificationList threadClassificationList = new ClassificationList(keepFrames, false);
+            threadClassifications.add(threadClassificationList);
+            Runnable r = () -> {
+                SceneChangeDetector detector = sceneThreshold > 0 ? new SceneChangeDetector(sceneThreshold, maxSkippedFrames) : null;
+                VideoCapture segmentCapture = numDecodeThreads == 1 ? capture : new VideoCapture(inputVideo);
+                Mat segmentMat = numDecodeThreads == 1 ? frameMat : new Mat();
+                try {
+                    if (numDecodeThreads == 1) {
+                        decodeFrames(segmentCapture, segmentMat, 0, -1, detector, frames, threadClassificationList);
+                    } else {
+                        int segment;
+                        while ((segment = nextSegment.getAndIncrement()) * videoSegmentFrames < totalDocuments) {
+                            int start = segment * videoSegmentFrames;
+                            int end = Math.min(start + videoSegmentFrames, totalDocuments);
+                            segmentCapture.set(CV_CAP_PROP_POS_FRAMES, start);
+                            // the frame count may only be an estimate, so the last segment is read to the end.
+                            decodeFrames(segmentCapture, segmentMat, start, end == totalDocuments ? -1 : end, detector, frames, threadClassificationList);
+                        }
+                    }
+                    if (remainingDecodeThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < numExtractionThreads; ++i)
+                            frames.put(endOfFrames);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                } finally {
+                    segmentCapture.release();
+                }
+            };
+            pool.execute(r);
+        }
 
-        Runnable videoRead = () -> {
-            while (capture.read(frameMat)) {
-                BufferedImage frame = Utils.mat2Img(frameMat);
+        DocumentBuilder builder = getCustomDocumentBuilder(featureNames); // shared by all extraction threads.
+        for (int runnableId = 0; runnableId < numExtractionThreads; ++runnableId) {
+            Runnable r = () -> {
                 try {
-                    double pos = capture.get(CV_CAP_PROP_POS_FRAMES);
-                    Document doc = builder.createDocument(frame, String.valueOf((int)pos));
-                    enqueueVideoFrame(doc);
-                } catch (Exception e) {
+                    VideoFrame frame;
+                    while ((frame = frames.take()) != endOfFrames) {
+                        try {
+                            long startTime = extractionTimer.start();
+                            frame.document = builder.createDocument(frame.image, String.valueOf(frame.number));
+                            extractionTimer.stop(startTime);
+                        } catch (Exception e) {
+                            e.printStackTrace();
+                            ArrayList<Integer> droppedFrames = new ArrayList<Integer>();
+                            droppedFrames.add(frame.number);
+                            if (frame.keyFrame != null)
+                                droppedFrames.addAll(frame.keyFrame.fail());
+                            skipFrames(droppedFrames);
+                            continue;
+                        } finally {
+                            frameBuffers.offer(frame.image);
+                            frame.image = null;
+                        }
+                        documents.put(frame);
+                    }
+                    if (remainingExtractionThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < numThreads; ++i)
+                            documents.put(endOfFrames);
+                    }
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                } catch (InterruptedException e) {
                     e.printStackTrace();
+                    System.exit(-1);
                 }
-            }
-            synchronized(videoFrames) {
-                finishedReadingVideo = true;
-                videoFrames.notifyAll();
-            }
-        };
-        pool.execute(videoRead);
+            };
+            pool.execute(r);
+        }
 
         for (int runnableId = 0; runnableId < numThreads; ++runnableId) {
+            ClassificationList threadClassificationList = new ClassificationList(keepFrames, false);
+            threadClassifications.add(threadClassificationList);
             Runnable r = () -> {
-                ArrayList<SearchProvider> searchProviders = setupSearchProviders(featureNames);
+                MultiFeatureSearchProvider searchProvider = setupSearchProvider(featureNames);
+                TopKSelector[] matchingDocuments = newSelectors(featureNames.size());
                 try {
-                    while (true) {
-                        Document imageDocument = dequeueVideoFrame();
-                        if (imageDocument == null) break;
-                        incrementProcessedFramesCount();
-
-                        Classification classification = new Classification(imageDocument);
-
-                        float lateFusionValues[] = new float[SampleType.values().length];
-
-                        for (SearchProvider searchProvider : searchProviders) {
-                            SampleInformation detectedSampleInfo = getMatchingSampleTypeForDocument(imageDocument, searchProvider, measureType);
-                            lateFusionValues[detectedSampleInfo.type.ordinal()] += detectedSampleInfo.confidence;
-                            classification.insert(searchProvider.featureName(), detectedSampleInfo.type);
+                    VideoFrame frame;
+                    while ((frame = documents.take()) != endOfFrames) {
+                        incrementProcessedDocumentsCount();
+                        Classification classification = classifyDocument(frame.document, searchProvider, matchingDocuments, measureType);
+                        writeResult(threadClassificationList, classification);
+                        if (frame.keyFrame != null) {
+                            for (int follower : frame.keyFrame.setClassification(classification))
+                                writeFollower(threadClassificationList, classification, follower);
                         }
-
-                        classification.insert("LateFusion", lateFusionValues[SampleType.POSITIVE.ordinal()] > lateFusionValues[SampleType.NEGATIVE.ordinal()] ? SampleType.POSITIVE : SampleType.NEGATIVE);
-                        classificationList.insert(classification);
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -254,46 +771,44 @@ public class Classifier {
             pool.execute(r);
         }
 
-        pool.shutdown();
-        try {
-            if (!pool.awaitTermination(365, TimeUnit.DAYS)) { // we are waiting for a whole year.
-                pool.shutdownNow();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-                    System.err.println("Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            pool.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-        return classificationList;
+        awaitPoolTermination();
+        monitor.shutdownNow();
+        progressDetails = null;
+        System.out.println(frames.getSummary());
+        System.out.println(documents.getSummary());
+        if (sceneThreshold > 0)
+            System.out.println("reused the classification of a key frame for " + reusedFrames.get() + " frames.");
+        return mergeClassificationLists(threadClassifications, classificationList);
     }
 
     public ClassificationList classifyDataset(HashMap<String, SampleType> inputDataIndices, ArrayList<String> featureNames, MeasureType measureType) throws IOException {
         initializeInputReaders(inputDataIndices);
-        ClassificationList classificationList = new ClassificationList();
+        final boolean keepImages = keepClassifications == null || keepClassifications;
+        ClassificationList classificationList = new ClassificationList(keepImages, true);
 
+        System.out.println("using " + numThreads + " threads for classifying.");
         pool = Executors.newFixedThreadPool(numThreads);
 
+        ArrayList<ClassificationList> threadClassifications = new ArrayList<ClassificationList>();
         for (int runnableId = 0; runnableId < numThreads; ++runnableId) {
+            ClassificationList threadClassificationList = new ClassificationList(keepImages, true);
+            threadClassifications.add(threadClassificationList);
             Runnable r = () -> {
-                ArrayList<SearchProvider> searchProviders = setupSearchProviders(featureNames);
+                MultiFeatureSearchProvider searchProvider = setupSearchProvider(featureNames);
+                TopKSelector[] matchingDocuments = newSelectors(featureNames.size());
                 try {
-                    while (true) {
-                        Document imageDocument = getNextDocument();
-                        if (imageDocument == null) break;
-
-                        Classification classification = new Classification(imageDocument);
-
-                        float lateFusionValues[] = new float[SampleType.values().length];
-
-                        for (SearchProvider searchProvider : searchProviders) {
-                            SampleInformation detectedSampleInfo = getMatchingSampleTypeForDocument(imageDocument, searchProvider, measureType);
-                            lateFusionValues[detectedSampleInfo.type.ordinal()] += detectedSampleInfo.confidence;
-                            classification.insert(searchProvider.featureName(), detectedSampleInfo.type);
+                    InputRange range;
+                    while ((range = getNextInputRange()) != null) {
+                        IndexReader inputReader = range.augmentedReader.indexReader;
+                        for (int docId = range.start; docId < range.end; ++docId) {
+                            if (range.liveDocs != null && !range.liveDocs.get(docId)) continue;
+                            long startTime = fetchTimer.start();
+                            Document imageDocument = inputReader.document(docId);
+                            fetchTimer.stop(startTime);
+                            addSampleTypeToDocument(imageDocument, range.augmentedReader.sampleType);
+                            incrementProcessedDocumentsCount();
+                            writeResult(threadClassificationList, classifyDocument(imageDocument, searchProvider, matchingDocuments, measureType));
                         }
-
-                        classification.insert("LateFusion", lateFusionValues[SampleType.POSITIVE.ordinal()] > lateFusionValues[SampleType.NEGATIVE.ordinal()] ? SampleType.POSITIVE : SampleType.NEGATIVE);
-                        classificationList.insert(classification);
                     }
                 } catch (IOException e) {
                     e.printStackTrace();
@@ -303,68 +818,106 @@ public class Classifier {
             pool.execute(r);
         }
 
-        pool.shutdown();
-        try {
-            if (!pool.awaitTermination(365, TimeUnit.DAYS)) { // we are waiting for a whole year.
-                pool.shutdownNow();
-                if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-                    System.err.println("Pool did not terminate");
-            }
-        } catch (InterruptedException ie) {
-            pool.shutdownNow();
-            Thread.currentThread().interrupt();
-        }
-        return classificationList;
+        awaitPoolTermination();
+        return mergeClassificationLists(threadClassifications, classificationList);
     }
 
     private synchronized void showProgress(int index, int numDocs) {
         if (silent) return;
-        if (index < currentProgress) return;
         int newValue = (int) (100.0 / (float) numDocs * (float) index);
-        if (currentProgress == newValue) return;
+        if (newValue <= currentProgress) return; // workers may report out of order.
         currentProgress = newValue;
         Utils.clearScreen();
-        System.out.println(Utils.clearLine() + newValue + "%");
+        String details = progressDetails;
+        System.out.println(Utils.clearLine() + newValue + "%" + (details == null ? "" : "  (" + details + ")"));
     }
 
     private class SampleInformation {
         SampleType type = SampleType.INVALID;
         Float confidence = 0f;
     }
-    public SampleInformation getMatchingSampleTypeForDocument(Document document, AbstractImageSearcher searcher, MeasureType measureType) throws IOException {
-        HashMap<SampleType, Utils.MutableFloat> typeScore = new HashMap<SampleType, Utils.MutableFloat>();
-        for (SampleType type : SampleType.values()) typeScore.put(type, new Utils.MutableFloat());
+    public SampleInformation getMatchingSampleTypeForDocument(Document document, SearchProvider searcher, MeasureType measureType) throws IOException {
+        TopKSelector matchingDocuments = selectors.get();
+        matchingDocuments.reset();
+        matchingDocuments.setLabelColumn(trainingIndex.getLabels());
+        searcher.search(document, trainingIndex.indexReader, matchingDocuments);
+        return getMatchingSampleType(matchingDocuments, measureType);
+    }
 
-        Utils.MaxHeap matchingDocuments = new Utils.MaxHeap(maximumHits);
+    // Loads everything the search providers of all threads share (feature matrices, graphs and codes),
+    // so that the first classification does not have to.
+    public void prepareSearch(ArrayList<String> featureNames) {
+        setupSearchProvider(featureNames);
+    }
 
-        for (AugmentedIndexReader augmentedReader : indexReaders) {
-            ImageSearchHits imageSearchHits = searcher.search(document, augmentedReader.indexReader);
-            for (int i = 0; i < imageSearchHits.length() && i < maximumHits; i++) {
-                Document matchingDocument = imageSearchHits.doc(i);
-                addSampleTypeToDocument(matchingDocument, augmentedReader.sampleType);
-                float score = imageSearchHits.score(i);
-                matchingDocuments.insert(score, matchingDocument);
-            }
+    // Classifies a single document. It may be called from any number of threads concurrently. Every
+    // thread sets up its search provider once and reuses it for the following documents.
+    public Classification classify(Document imageDocument, ArrayList<String> featureNames, MeasureType measureType) throws IOException {
+        MultiFeatureSearchProvider searchProvider = threadSearchProviders.get();
+        if (searchProvider == null || !searchProvider.featureNames().equals(featureNames)) {
+            searchProvider = setupSearchProvider(featureNames);
+            threadSearchProviders.set(searchProvider);
+            threadSelectors.set(newSelectors(featureNames.size()));
+        }
+        return classifyDocument(imageDocument, searchProvider, threadSelectors.get(), measureType);
+    }
+
+    private TopKSelector[] newSelectors(int numFeatures) {
+        TopKSelector[] selectors = new TopKSelector[numFeatures];
+        for (int i = 0; i < numFeatures; ++i)
+            selectors[i] = new TopKSelector(maximumHits);
+        return selectors;
+    }
+
+    private Classification classifyDocument(Document imageDocument, MultiFeatureSearchProvider searchProvider, TopKSelector[] matchingDocuments, MeasureType measureType) throws IOException {
+        for (TopKSelector selector : matchingDocuments) {
+            selector.reset();
+            selector.setLabelColumn(trainingIndex.getLabels());
+        }
+        searchProvider.search(imageDocument, trainingIndex.indexReader, matchingDocuments);
+
+        Classification classification = new Classification(imageDocument);
+        float lateFusionValues[] = new float[SampleType.values().length];
+        List<String> featureNames = searchProvider.featureNames();
+        for (int i = 0; i < featureNames.size(); ++i) {
+            long startTime = voteTimer.start();
+            SampleInformation detectedSampleInfo = getMatchingSampleType(matchingDocuments[i], measureType);
+            voteTimer.stop(startTime);
+            lateFusionValues[detectedSampleInfo.type.ordinal()] += detectedSampleInfo.confidence;
+            classification.insert(featureNames.get(i), detectedSampleInfo.type);
         }
 
+        long startTime = fusionTimer.start();
+        classification.insert("LateFusion", lateFusionValues[SampleType.POSITIVE.ordinal()] > lateFusionValues[SampleType.NEGATIVE.ordinal()] ? SampleType.POSITIVE : SampleType.NEGATIVE);
+        fusionTimer.stop(startTime);
+        return classification;
+    }
+
+    // Votes on the sample type of a query, given its (unsorted) matches.
+    private SampleInformation getMatchingSampleType(TopKSelector matchingDocuments, MeasureType measureType) {
+        int numTypes = SampleType.values().length;
+        float[] typeScore = new float[numTypes];
+        int[] typeIncrements = new int[numTypes];
+
+        matchingDocuments.sort();
         int numMatchingDocuments = matchingDocuments.size();
-        while (!matchingDocuments.isEmpty()) {
-            Utils.PrioritizedDocument prioritizedDocument = matchingDocuments.poll();
-            SampleType sampleType = Utils.getSampleTypeFromDocument(prioritizedDocument.document);
+        for (int rank = 0; rank < numMatchingDocuments; ++rank) {
+            int sampleType = matchingDocuments.label(rank);
+            ++typeIncrements[sampleType];
             switch (measureType) {
                 case COUNT: {
-                    typeScore.get(sampleType).increment(1);
+                    typeScore[sampleType] += 1;
                     break;
                 }
                 case WEIGHTED_COUNT: {
-                    typeScore.get(sampleType).increment(1.0f / ((float) matchingDocuments.size() + 1.0f));
+                    typeScore[sampleType] += 1.0f / ((float) rank + 1.0f);
                     break;
                 }
                 case WEIGHTED_SCORE:
                 case WEIGHTED_AVERAGE_SCORE: {
-                    float weight = 1.0f / ((float) matchingDocuments.size() + 1.0f);
-                    // prioritizedDocument.score has a range from 0 to MAX_FLOAT. Where 0 is a perfect match.
-                    typeScore.get(sampleType).increment(prioritizedDocument.score * weight);
+                    float weight = 1.0f / ((float) rank + 1.0f);
+                    // matchingDocuments.score() has a range from 0 to MAX_FLOAT. Where 0 is a perfect match.
+                    typeScore[sampleType] += matchingDocuments.score(rank) * weight;
                     break;
                 }
             }
@@ -374,21 +927,18 @@ public class Classifier {
         SampleType lowestScoreType = SampleType.INVALID;
         float highestScore = 0;
         float lowestScore = Float.MAX_VALUE;
-        Iterator it = typeScore.entrySet().iterator();
-        while (it.hasNext()) {
-            HashMap.Entry pair = (HashMap.Entry)it.next();
-            if (pair.getKey() == SampleType.INVALID) continue; // This score will always be 0, and we don't want that to interfere.
-            Utils.MutableFloat score = (Utils.MutableFloat)pair.getValue();
-            float f = score.get();
+        for (SampleType type : SampleType.values()) {
+            if (type == SampleType.INVALID) continue; // This score will always be 0, and we don't want that to interfere.
+            float f = typeScore[type.ordinal()];
             if (measureType == MeasureType.WEIGHTED_AVERAGE_SCORE)
-                f = f / score.getIncrements();
+                f = f / typeIncrements[type.ordinal()];
             if (f > highestScore) {
                 highestScore = f;
-                highestScoreType = (SampleType) pair.getKey();
+                highestScoreType = type;
             }
             if (f < lowestScore) {
                 lowestScore = f;
-                lowestScoreType = (SampleType) pair.getKey();
+                lowestScoreType = type;
             }
         }
 
@@ -397,12 +947,12 @@ public class Classifier {
         switch (measureType) {
             case COUNT:
             case WEIGHTED_COUNT:
-                info.confidence = (float)typeScore.get(highestScoreType).getIncrements() / numMatchingDocuments;
+                info.confidence = (float)typeIncrements[highestScoreType.ordinal()] / numMatchingDocuments;
                 info.type = highestScoreType;
                 break;
             case WEIGHTED_SCORE:
             case WEIGHTED_AVERAGE_SCORE:
-                info.confidence = (float)typeScore.get(lowestScoreType).getIncrements() / numMatchingDocuments;
+                info.confidence = (float)typeIncrements[lowestScoreType.ordinal()] / numMatchingDocuments;
                 info.type = lowestScoreType;
                 break;
         }
@@ -413,11 +963,4 @@ public class Classifier {
         matchingDocument.add(new StoredField(Utils.SAMPLE_TYPE_DESCRIPTOR_NAME, sampleType.name()));
     }
 
-    private static String getClassName(String featurename){
-        String className = "net.semanticmetadata.lire.imageanalysis.";
-        if (featurename.equals("JointHistogram") || featurename.equals("LocalBinaryPatternsAndOpponent") || featurename.equals("RankAndOpponent"))
-            return className + "joint." + featurename;
-        return className + featurename;
-    }
-
 }
@@ -0,0 +1,62 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// One line per classified image: its path (or frame number), the type detected by every feature and LateFusion.
+public class CsvResultSink implements ResultSink {
+    private final ArrayList<String> columns = new ArrayList<String>();
+    private final ResultWriter bw;
+
+    public CsvResultSink(String fileName, List<String> featureNames) throws IOException {
+        columns.addAll(featureNames);
+        columns.add("LateFusion");
+        System.out.println("writing csv output to: " + fileName);
+        bw = new ResultWriter(fileName);
+        bw.write("image");
+        for (String column : columns)
+            bw.write("," + column);
+        bw.newLine();
+        bw.flush();
+    }
+
+    synchronized public void write(Classification classification) throws IOException {
+        bw.write(quote(classification.getImagePath()));
+        for (String column : columns) {
+            SampleType type = classification.get(column);
+            bw.write("," + (type == null ? "" : type.name()));
+        }
+        bw.newLine();
+        bw.endRecord();
+    }
+
+    private static String quote(String value) {
+        if (value == null) return "";
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0) return value;
+        return "\"" + value.replace("\"", "\"\"") + "\"";
+    }
+
+    synchronized public void close() throws IOException {
+        bw.close();
+    }
+}
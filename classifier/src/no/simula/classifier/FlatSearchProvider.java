@@ -0,0 +1,67 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
+import no.simula.common.FeatureMatrix;
+import no.simula.common.TopKSelector;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Exhaustive k-NN search over FeatureMatrix instances that were loaded once per training index.
+// A provider keeps per-query scratch state and must only be used by a single thread.
+public class FlatSearchProvider implements SearchProvider {
+    private final String m_featureName;
+    private final String fieldName;
+    private final Map<IndexReader, FeatureMatrix> matrices;
+    private final FeatureMatrix.Query query;
+
+    FlatSearchProvider(String featureName, Map<IndexReader, FeatureMatrix> matrices) {
+        m_featureName = featureName;
+        this.matrices = matrices;
+        FeatureMatrix any = matrices.values().iterator().next();
+        fieldName = any.newFeature().getFieldName();
+        query = any.newQuery();
+    }
+
+    public String featureName() { return m_featureName; }
+
+    FeatureMatrix getMatrix(IndexReader reader) throws IOException {
+        FeatureMatrix matrix = matrices.get(reader);
+        if (matrix == null)
+            throw new IOException("feature " + m_featureName + " was not loaded for this index.");
+        return matrix;
+    }
+
+    FeatureMatrix.Query prepareQuery(Document document) throws IOException {
+        BytesRef bytes = document.getBinaryValue(fieldName);
+        if (bytes == null)
+            throw new IOException("document does not contain feature " + m_featureName + ".");
+        query.set(bytes.bytes, bytes.offset, bytes.length);
+        return query;
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector hits) throws IOException {
+        getMatrix(reader).search(prepareQuery(document), hits);
+    }
+}
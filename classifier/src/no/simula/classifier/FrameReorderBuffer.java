@@ -0,0 +1,78 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.IOException;
+import java.util.TreeMap;
+
+// Passes the classifications of video frames on in the order of their frame numbers,
+// although the worker threads finish them out of order.
+// Frames that could not be classified are skipped. A frame that never arrives (e.g. because it could
+// not be decoded) only delays the following frames until maximumPending frames are waiting, then the
+// buffer moves on to the next frame it has.
+public class FrameReorderBuffer implements ResultSink {
+    private final ResultSink sink;
+    private final int maximumPending;
+    // skipped frames are pending without a classification.
+    private final TreeMap<Integer, Classification> pending = new TreeMap<Integer, Classification>();
+    private int nextFrame;
+
+    public FrameReorderBuffer(ResultSink sink, int firstFrame, int maximumPending) {
+        this.sink = sink;
+        this.maximumPending = maximumPending;
+        nextFrame = firstFrame;
+    }
+
+    synchronized public void write(Classification classification) throws IOException {
+        int frame = Integer.parseInt(classification.getImagePath());
+        if (frame < nextFrame) { // we already moved on, late frames are passed on as they come.
+            sink.write(classification);
+            return;
+        }
+        add(frame, classification);
+    }
+
+    synchronized public void skip(String imagePath) throws IOException {
+        int frame = Integer.parseInt(imagePath);
+        sink.skip(imagePath);
+        if (frame >= nextFrame)
+            add(frame, null);
+    }
+
+    private void add(int frame, Classification classification) throws IOException {
+        pending.put(frame, classification);
+        if (pending.size() > maximumPending)
+            nextFrame = pending.firstKey();
+        while (!pending.isEmpty() && pending.firstKey() == nextFrame) {
+            Classification next = pending.pollFirstEntry().getValue();
+            if (next != null)
+                sink.write(next);
+            ++nextFrame;
+        }
+    }
+
+    synchronized public void close() throws IOException {
+        for (Classification classification : pending.values())
+            if (classification != null)
+                sink.write(classification);
+        pending.clear();
+        sink.close();
+    }
+}
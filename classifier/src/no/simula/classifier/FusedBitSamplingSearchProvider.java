@@ -0,0 +1,85 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.ScoreDoc;
+import no.simula.common.StageMetrics;
+import no.simula.common.StageTimer;
+import no.simula.common.TopKSelector;
+
+import java.io.IOException;
+import java.util.*;
+
+// Collects the hash based candidates of every feature first, then loads each candidate once,
+// with the fields of all features, and computes the distances of the features that selected it.
+// The results are identical to searching every feature separately.
+public class FusedBitSamplingSearchProvider implements MultiFeatureSearchProvider {
+    private final List<BitSamplingSearchProvider> searchProviders;
+    private final List<String> featureNames = new ArrayList<String>();
+    private final StageTimer searchTimer; // all features are searched at once, so they are timed together.
+    private final Set<String> fieldsToLoad = new HashSet<String>();
+    private long[] candidates = new long[0];
+
+    FusedBitSamplingSearchProvider(List<BitSamplingSearchProvider> searchProviders) {
+        if (searchProviders.size() > 64)
+            throw new IllegalArgumentException("at most 64 features can be searched at once.");
+        this.searchProviders = searchProviders;
+        for (BitSamplingSearchProvider searchProvider : searchProviders) {
+            featureNames.add(searchProvider.featureName());
+            fieldsToLoad.add(searchProvider.fieldName());
+        }
+        searchTimer = StageMetrics.timer("classify.search." + String.join("+", featureNames));
+    }
+
+    public List<String> featureNames() {
+        return featureNames;
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector[] hits) throws IOException {
+        long startTime = searchTimer.start();
+        searchAll(document, reader, hits);
+        searchTimer.stop(startTime);
+    }
+
+    private void searchAll(Document document, IndexReader reader, TopKSelector[] hits) throws IOException {
+        // every candidate is encoded as docId << 6 | feature, so sorting groups them by docId.
+        int numCandidates = 0;
+        for (int f = 0; f < searchProviders.size(); ++f) {
+            ScoreDoc[] featureCandidates = searchProviders.get(f).findCandidates(document, reader);
+            if (candidates.length < numCandidates + featureCandidates.length)
+                candidates = Arrays.copyOf(candidates, Math.max(2 * candidates.length, numCandidates + featureCandidates.length));
+            for (ScoreDoc candidate : featureCandidates)
+                candidates[numCandidates++] = ((long) candidate.doc << 6) | f;
+        }
+        Arrays.sort(candidates, 0, numCandidates);
+
+        int i = 0;
+        while (i < numCandidates) {
+            int docId = (int) (candidates[i] >>> 6);
+            Document candidate = reader.document(docId, fieldsToLoad);
+            for (; i < numCandidates && (int) (candidates[i] >>> 6) == docId; ++i) {
+                int f = (int) (candidates[i] & 63);
+                hits[f].insert(searchProviders.get(f).distance(candidate), docId);
+            }
+        }
+    }
+}
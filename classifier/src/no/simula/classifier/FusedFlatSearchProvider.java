@@ -0,0 +1,75 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import no.simula.common.FeatureMatrix;
+import no.simula.common.StageMetrics;
+import no.simula.common.StageTimer;
+import no.simula.common.TopKSelector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// A single scan over the rows of an index, computing the distances of all features for a row
+// before moving on to the next one.
+public class FusedFlatSearchProvider implements MultiFeatureSearchProvider {
+    private final List<FlatSearchProvider> searchProviders;
+    private final List<String> featureNames = new ArrayList<String>();
+    private final StageTimer searchTimer; // all features are searched at once, so they are timed together.
+    private final FeatureMatrix[] matrices;
+    private final FeatureMatrix.Query[] queries;
+
+    FusedFlatSearchProvider(List<FlatSearchProvider> searchProviders) {
+        this.searchProviders = searchProviders;
+        for (SearchProvider searchProvider : searchProviders)
+            featureNames.add(searchProvider.featureName());
+        matrices = new FeatureMatrix[searchProviders.size()];
+        queries = new FeatureMatrix.Query[searchProviders.size()];
+        searchTimer = StageMetrics.timer("classify.search." + String.join("+", featureNames));
+    }
+
+    public List<String> featureNames() {
+        return featureNames;
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector[] hits) throws IOException {
+        long startTime = searchTimer.start();
+        searchAll(document, reader, hits);
+        searchTimer.stop(startTime);
+    }
+
+    private void searchAll(Document document, IndexReader reader, TopKSelector[] hits) throws IOException {
+        int numFeatures = searchProviders.size();
+        for (int f = 0; f < numFeatures; ++f) {
+            FlatSearchProvider searchProvider = searchProviders.get(f);
+            matrices[f] = searchProvider.getMatrix(reader);
+            queries[f] = searchProvider.prepareQuery(document);
+        }
+
+        int numRows = reader.maxDoc();
+        for (int row = 0; row < numRows; ++row) {
+            for (int f = 0; f < numFeatures; ++f)
+                hits[f].insert(matrices[f].distance(queries[f], row), row);
+        }
+    }
+}
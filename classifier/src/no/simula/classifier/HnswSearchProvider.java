@@ -0,0 +1,61 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import no.simula.common.FeatureMatrix;
+import no.simula.common.HnswGraph;
+import no.simula.common.TopKSelector;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+
+import java.io.IOException;
+import java.util.Map;
+
+// Approximate k-NN search through the HNSW graphs built by the indexer.
+// Distances are computed on the same in-memory FeatureMatrix the flat search uses. Every training
+// index has its own graph, whose rows start at the docBase of that index in the merged matrix.
+public class HnswSearchProvider extends FlatSearchProvider {
+    private final TrainingIndex trainingIndex;
+    private final HnswGraph[] graphs;
+    private HnswGraph.Searcher[] searchers = null;
+    private final int efSearch;
+
+    HnswSearchProvider(String featureName, Map<IndexReader, FeatureMatrix> matrices, TrainingIndex trainingIndex, HnswGraph[] graphs, int efSearch) {
+        super(featureName, matrices);
+        this.trainingIndex = trainingIndex;
+        this.graphs = graphs;
+        this.efSearch = efSearch;
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector hits) throws IOException {
+        if (reader != trainingIndex.indexReader)
+            throw new IOException("the graphs of feature " + featureName() + " were not built for this index.");
+        if (searchers == null) {
+            FeatureMatrix matrix = getMatrix(reader);
+            searchers = new HnswGraph.Searcher[graphs.length];
+            // the graphs have to deliver at least as many candidates as we are going to vote on.
+            for (int i = 0; i < graphs.length; ++i)
+                searchers[i] = graphs[i].newSearcher(matrix, trainingIndex.docBase(i), Math.max(efSearch, hits.capacity()));
+        }
+        FeatureMatrix.Query query = prepareQuery(document);
+        for (HnswGraph.Searcher searcher : searchers)
+            searcher.search(query, hits);
+    }
+}
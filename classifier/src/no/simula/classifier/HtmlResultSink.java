@@ -0,0 +1,70 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.IOException;
+
+// A table of all classified images, three per row, framed red if LateFusion detected a positive and green otherwise.
+public class HtmlResultSink implements ResultSink {
+    private static final int imagesPerRow = 3;
+
+    private final ResultWriter bw;
+    private int numImages = 0;
+
+    public HtmlResultSink(String fileName) throws IOException {
+        System.out.println("writing html output to: " + fileName);
+        bw = new ResultWriter(fileName);
+        bw.write("<html>\n" +
+                "<head><title>Classification Results</title></head>\n" +
+                "<body bgcolor=\"#FFFFFF\">\n");
+        bw.write("<table>");
+        bw.flush();
+    }
+
+    synchronized public void write(Classification classification) throws IOException {
+        SampleType type = classification.get("LateFusion");
+        String imagePath = classification.getImagePath();
+
+        if (numImages % imagesPerRow == 0) bw.write("<tr>");
+        String colorF = (type == SampleType.POSITIVE) ? "rgb(255, 0, 0)" : "rgb(0, 255, 0)";
+        bw.write("<td><a href=\""
+                    + imagePath
+                    + "\"><img style=\"max-width:220px;border:medium solid "
+                    + colorF
+                    + ";\"src=\""
+                    + imagePath
+                    + "\" border=\"" + 5 + "\" style=\"border: 3px\n" + "black solid;\"></a></td>\n");
+        ++numImages;
+        if (numImages % imagesPerRow == 0) bw.write("</tr>");
+        bw.endRecord();
+    }
+
+    synchronized public void close() throws IOException {
+        if (numImages % imagesPerRow != 0) {
+            for (int i = numImages % imagesPerRow; i < imagesPerRow; ++i)
+                bw.write("<td>-</td>\n");
+            bw.write("</tr>");
+        }
+
+        bw.write("</table></body>\n" +
+                "</html>");
+        bw.close();
+    }
+}
@@ -0,0 +1,90 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+
+// Writes the frame numbers of a video, grouped by their LateFusion type, in the format
+// { "negativeFrames": [...], "positiveFrames": [...], "videoName": "..." }.
+// Negative frames are written to the output file right away, positive frames go to a temporary
+// file next to it, which is appended when the sink is closed.
+public class JsonResultSink implements ResultSink {
+    private final File file;
+    private final File positiveFramesFile;
+    private final String videoName;
+    private final ResultWriter negativeFrames;
+    private final ResultWriter positiveFrames;
+    private boolean hasNegativeFrames = false;
+    private boolean hasPositiveFrames = false;
+
+    public JsonResultSink(String fileName, String inputVideo) throws IOException {
+        file = new File(fileName);
+        positiveFramesFile = new File(fileName + ".positiveFrames");
+        videoName = new File(inputVideo).getAbsolutePath();
+        System.out.println("writing json output to: " + fileName);
+        negativeFrames = new ResultWriter(fileName);
+        positiveFrames = new ResultWriter(positiveFramesFile.getPath());
+        negativeFrames.write("{"); negativeFrames.newLine();
+        negativeFrames.write("    \"negativeFrames\": [");
+        negativeFrames.flush();
+    }
+
+    synchronized public void write(Classification classification) throws IOException {
+        if (classification.get("LateFusion") == SampleType.POSITIVE) {
+            writeFrame(positiveFrames, hasPositiveFrames, classification.getImagePath());
+            hasPositiveFrames = true;
+        } else {
+            writeFrame(negativeFrames, hasNegativeFrames, classification.getImagePath());
+            hasNegativeFrames = true;
+        }
+    }
+
+    private static void writeFrame(ResultWriter bw, boolean hasFrames, String frameNumber) throws IOException {
+        if (hasFrames) bw.write(",");
+        bw.newLine();
+        bw.write("        " + frameNumber);
+        bw.endRecord();
+    }
+
+    synchronized public void close() throws IOException {
+        positiveFrames.close();
+        ResultWriter bw = negativeFrames;
+        bw.newLine();
+        bw.write("    ],"); bw.newLine();
+        bw.write("    \"positiveFrames\": [");
+        FileReader reader = new FileReader(positiveFramesFile);
+        try {
+            char[] buffer = new char[8192];
+            int length;
+            while ((length = reader.read(buffer)) > 0)
+                bw.write(buffer, 0, length);
+        } finally {
+            reader.close();
+        }
+        bw.newLine();
+        bw.write("    ],"); bw.newLine();
+        bw.write("\"videoName\": \"" + videoName + "\""); bw.newLine();
+        bw.write("}");
+        bw.close();
+        positiveFramesFile.delete();
+    }
+}
@@ -19,6 +19,8 @@
 
 package no.simula.classifier;
 
+import no.simula.common.FeatureMatrix;
+import no.simula.common.StageMetrics;
 import org.opencv.core.Core;
 
 import java.io.File;
@@ -33,6 +35,24 @@ public class Main {
     private static ArrayList<String> imageFeatures = new ArrayList<String>();
     private static HashMap<String, SampleType> inputDataIndices = new HashMap<String, SampleType>();
     private static MeasureType measureType = MeasureType.COUNT;
+    private static SearchEngine searchEngine = SearchEngine.BIT_SAMPLING;
+    private static Boolean fusedSearch = false;
+    private static int efSearch = 100;
+    private static int rerank = 0;
+    private static Boolean metricsOnly = null;
+    private static ArrayList<String> outputFormats = null;
+    private static int searchThreads = 0;
+    private static int extractionThreads = 0;
+    private static int decodeThreads = 1;
+    private static double sceneThreshold = 0;
+    private static int maxSkippedFrames = 30;
+    private static int queueSize = 0;
+    private static int maxResolution = 0;
+    private static int daemonPort = 0;
+    private static boolean preload = false;
+    private static boolean useSnapshots = false;
+    private static File metricsFile = null;
+    private static int metricsPeriod = 10;
     private static String inputVideo = null;
     private static Boolean silent = false;
 
@@ -62,12 +82,63 @@ public class Main {
         System.out.println("                                  The respective feature must be present in any index provided.");
         System.out.println("       -m | -measure              The measure to use. (any of: classCount, weightedByRank,");
         System.out.println("                                  weightedByDistance, weightedByAverageDistance)");
+        System.out.println("       -e | -searchEngine         The search engine to use. (any of: bitSampling, flat, hnsw, pq)");
+        System.out.println("                                  flat loads all training features into memory once and");
+        System.out.println("                                  compares every query against all of them.");
+        System.out.println("                                  hnsw requires the training indices to be built with -graph.");
+        System.out.println("                                  pq requires the training indices to be built with -quantize.");
+        System.out.println("       -ef | -efSearch            Size of the candidate list of the hnsw search engine. 100 is default.");
+        System.out.println("       -r | -rerank               Number of pq candidates to re-score with their exact distance. 0 is default,");
+        System.out.println("                                  which is only allowed for CEDD, FCTH and JCD. The pq distances of any other");
+        System.out.println("                                  feature are not comparable to its exact distances.");
+        System.out.println("       -u | -fused                Search all features in a single pass over the training data (true / false).");
+        System.out.println("       -o | -output               Comma separated result files to write while classifying. (any of: json, csv,");
+        System.out.println("                                  html, none) json is default for videos and html for datasets.");
+        System.out.println("                                  json is only available for videos.");
+        System.out.println("       -M | -metricsOnly          Do not keep every single classification, and print no per image results.");
+        System.out.println("                                  For datasets only the metrics are printed. True is default for videos,");
+        System.out.println("                                  whose frames are only written to the result files (true / false).");
+        System.out.println("       -st | -searchThreads       Number of threads classifying. Half the available processors is default.");
+        System.out.println("       -dt | -decodeThreads       Number of threads decoding segments of a video concurrently. 1 is default.");
+        System.out.println("       -sc | -sceneThreshold      Reuse the classification of the last classified video frame for the following");
+        System.out.println("                                  frames, as long as their 32x18 grayscale thumbnails differ by at most this mean");
+        System.out.println("                                  absolute pixel difference (0 - 255). 0 is default and classifies every frame.");
+        System.out.println("       -ms | -maxSkippedFrames    Maximum number of frames in a row reusing a classification. 30 is default.");
+        System.out.println("       -xt | -extractionThreads   Number of threads extracting the features of video frames.");
+        System.out.println("                                  The same as -searchThreads is default.");
+        System.out.println("       -qs | -queueSize           Number of frames waiting between the stages of video classification.");
+        System.out.println("                                  Twice the number of threads of the next stage is default.");
+        System.out.println("       -mr | -maxResolution       Shrink video frames to at most this many pixels wide or high before extracting");
+        System.out.println("                                  their features (and images classified by -daemon). Use the same value as for");
+        System.out.println("                                  indexing the training data.");
+        System.out.println("       -pl | -preload             Read the training indices into the page cache in parallel, and load");
+        System.out.println("                                  the search data of every feature before classifying (true / false).");
+        System.out.println("       -sn | -snapshots           Keep snapshots of the decoded labels and features next to the training");
+        System.out.println("                                  indices, and load them from there on later runs (true / false).");
+        System.out.println("       -mf | -metricsFile         Write the latency histograms and counters of every stage to this json file,");
+        System.out.println("                                  regularly while classifying and once finished. They are also available over JMX.");
+        System.out.println("       -mp | -metricsPeriod       Seconds between two writes of the metrics file. 10 is default.");
+        System.out.println("       -d | -daemon               Keep the training indices open and classify single images requested over");
+        System.out.println("                                  http on this port of localhost, instead of any input data. See README.md.");
         System.out.println("       -s | -silent               Do not print progress messages (true / false).");
         System.out.println("");
         System.out.println("       All command line options must always be used in pairs of option and value.");
         System.exit(-1);
     }
 
+    private static int parsePositiveInt(String value, String name) {
+        int n = 0;
+        try {
+            n = Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+        }
+        if (n < 1) {
+            System.out.println("illegal " + name + " value.");
+            printUsage();
+        }
+        return n;
+    }
+
     public static void verifyArguments(String[] args) {
         int numArgs = args.length;
         if (numArgs % 2 == 1)
@@ -100,6 +171,73 @@ public class Main {
                     System.out.println("illegal measure type.");
                     printUsage();
                 }
+            } else if (argument.equals("-e") || argument.equals("-searchEngine")) {
+                if (value.equals("bitSampling")) searchEngine = SearchEngine.BIT_SAMPLING;
+                else if (value.equals("flat")) searchEngine = SearchEngine.FLAT;
+                else if (value.equals("hnsw")) searchEngine = SearchEngine.HNSW;
+                else if (value.equals("pq")) searchEngine = SearchEngine.PQ;
+                else {
+                    System.out.println("illegal search engine.");
+                    printUsage();
+                }
+            } else if (argument.equals("-ef") || argument.equals("-efSearch")) {
+                efSearch = parsePositiveInt(value, "efSearch");
+            } else if (argument.equals("-r") || argument.equals("-rerank")) {
+                try {
+                    rerank = Integer.parseInt(value);
+                } catch (NumberFormatException e) {
+                    rerank = -1;
+                }
+                if (rerank < 0) {
+                    System.out.println("illegal rerank value.");
+                    printUsage();
+                }
+            } else if (argument.equals("-u") || argument.equals("-fused")) {
+                fusedSearch = (value.equals("true"));
+            } else if (argument.equals("-o") || argument.equals("-output")) {
+                outputFormats = new ArrayList<String>();
+                for (String format : value.split(",")) {
+                    if (!format.equals("json") && !format.equals("csv") && !format.equals("html") && !format.equals("none")) {
+                        System.out.println("illegal output format.");
+                        printUsage();
+                    }
+                    if (!format.equals("none"))
+                        outputFormats.add(format);
+                }
+            } else if (argument.equals("-st") || argument.equals("-searchThreads")) {
+                searchThreads = parsePositiveInt(value, "searchThreads");
+            } else if (argument.equals("-dt") || argument.equals("-decodeThreads")) {
+                decodeThreads = parsePositiveInt(value, "decodeThreads");
+            } else if (argument.equals("-sc") || argument.equals("-sceneThreshold")) {
+                try {
+                    sceneThreshold = Double.parseDouble(value);
+                } catch (NumberFormatException e) {
+                    sceneThreshold = -1;
+                }
+                if (sceneThreshold < 0 || sceneThreshold > 255) {
+                    System.out.println("illegal sceneThreshold value.");
+                    printUsage();
+                }
+            } else if (argument.equals("-ms") || argument.equals("-maxSkippedFrames")) {
+                maxSkippedFrames = parsePositiveInt(value, "maxSkippedFrames");
+            } else if (argument.equals("-xt") || argument.equals("-extractionThreads")) {
+                extractionThreads = parsePositiveInt(value, "extractionThreads");
+            } else if (argument.equals("-qs") || argument.equals("-queueSize")) {
+                queueSize = parsePositiveInt(value, "queueSize");
+            } else if (argument.equals("-mr") || argument.equals("-maxResolution")) {
+                maxResolution = parsePositiveInt(value, "maxResolution");
+            } else if (argument.equals("-pl") || argument.equals("-preload")) {
+                preload = (value.equals("true"));
+            } else if (argument.equals("-sn") || argument.equals("-snapshots")) {
+                useSnapshots = (value.equals("true"));
+            } else if (argument.equals("-mf") || argument.equals("-metricsFile")) {
+                metricsFile = new File(value);
+            } else if (argument.equals("-mp") || argument.equals("-metricsPeriod")) {
+                metricsPeriod = parsePositiveInt(value, "metricsPeriod");
+            } else if (argument.equals("-d") || argument.equals("-daemon")) {
+                daemonPort = parsePositiveInt(value, "daemon port");
+            } else if (argument.equals("-M") || argument.equals("-metricsOnly")) {
+                metricsOnly = (value.equals("true"));
             } else if (argument.equals("-s") || argument.equals("-silent")) {
                 silent = (value.equals("true"));
             } else {
@@ -112,7 +250,7 @@ public class Main {
             printUsage();
         }
 
-        if (inputDataIndices.isEmpty() && inputVideo == null) {
+        if (inputDataIndices.isEmpty() && inputVideo == null && daemonPort == 0) {
             System.out.println("At least a single input data index or an input video must be specified.");
             printUsage();
         }
@@ -121,6 +259,49 @@ public class Main {
             System.out.println("An image feature to use for classification must be specified.");
             printUsage();
         }
+
+        if (searchEngine == SearchEngine.PQ && rerank == 0) {
+            for (String featureName : imageFeatures) {
+                if (!FeatureMatrix.isTanimotoFeature(featureName)) {
+                    System.out.println("pq search of " + featureName + " requires a rerank value.");
+                    printUsage();
+                }
+            }
+        }
+
+        if (metricsOnly == null)
+            metricsOnly = inputVideo != null;
+
+        if (outputFormats == null) {
+            outputFormats = new ArrayList<String>();
+            if (inputVideo != null)
+                outputFormats.add("json");
+            else if (!metricsOnly)
+                outputFormats.add("html");
+        }
+
+        if (inputVideo == null && outputFormats.contains("json")) {
+            System.out.println("json output is only available for videos.");
+            printUsage();
+        }
+    }
+
+    private static ResultSink createResultSink() throws IOException {
+        String fileName = "results-" + System.currentTimeMillis() / 1000;
+        ResultSinkList sinks = new ResultSinkList();
+        for (String format : outputFormats) {
+            if (format.equals("json"))
+                sinks.add(new JsonResultSink(fileName + ".json", inputVideo));
+            else if (format.equals("csv"))
+                sinks.add(new CsvResultSink(fileName + ".csv", imageFeatures));
+            else if (format.equals("html"))
+                sinks.add(new HtmlResultSink(fileName + ".html"));
+        }
+        // the first frame read from a video is frame 1. Concurrently decoded segments are up to a
+        // segment per decoding thread apart.
+        if (inputVideo != null)
+            return new FrameReorderBuffer(sinks, 1, Math.max(4096, 2 * decodeThreads * Classifier.videoSegmentFrames));
+        return sinks;
     }
 
     public static void main(String[] args) throws IOException, IllegalAccessException, InstantiationException, ClassNotFoundException {
@@ -136,22 +317,45 @@ public class Main {
         long startTime = System.currentTimeMillis();
         try {
             verifyArguments(args);
-            Classifier classifier = new Classifier(classifierIndices, silent);
+            if (metricsFile != null)
+                StageMetrics.startDump(metricsFile, metricsPeriod);
+            Classifier classifier = new Classifier(classifierIndices, silent, preload, useSnapshots);
+            classifier.setSearchEngine(searchEngine);
+            classifier.setFusedSearch(fusedSearch);
+            classifier.setEfSearch(efSearch);
+            classifier.setRerank(rerank);
+            classifier.setKeepClassifications(!metricsOnly);
+            classifier.setSearchThreads(searchThreads);
+            classifier.setDecodeThreads(decodeThreads);
+            classifier.setSceneThreshold(sceneThreshold);
+            classifier.setMaxSkippedFrames(maxSkippedFrames);
+            classifier.setMaxResolution(maxResolution);
+            classifier.setExtractionThreads(extractionThreads);
+            classifier.setQueueSize(queueSize);
+            if (preload)
+                classifier.prepareSearch(imageFeatures);
+            if (daemonPort > 0) {
+                new ClassificationServer(classifier, imageFeatures, measureType, maxResolution, daemonPort).start();
+                return;
+            }
+            ResultSink resultSink = createResultSink();
+            classifier.setResultSink(resultSink);
 
             ClassificationList classificationList = null;
             if (inputVideo != null) {
                 classificationList = classifier.classifyVideo(inputVideo, imageFeatures, measureType);
+                resultSink.close();
                 classificationList.print();
-                classificationList.exportJSON(inputVideo);
             } else {
                 classificationList = classifier.classifyDataset(inputDataIndices, imageFeatures, measureType);
+                resultSink.close();
                 classificationList.print();
                 classificationList.createMetrics();
-                classificationList.createHTML();
             }
         } catch (Exception e) {
             e.printStackTrace();
         }
+        StageMetrics.stopDump();
         float duration = (float)(System.currentTimeMillis() - startTime) / 1000f;
         System.out.println("duration: " + duration + "seconds.");
 
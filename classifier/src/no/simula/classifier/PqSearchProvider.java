@@ -0,0 +1,102 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import no.simula.common.FeatureMatrix;
+import no.simula.common.Features;
+import no.simula.common.ProductQuantizer;
+import no.simula.common.TopKSelector;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+
+// k-NN search over the product quantization codes built by the indexer. Only the codes are kept in
+// memory. Every training index has its own codebooks, and its rows start at its docBase in the
+// merged collection. If reranking is enabled, the best candidates of all indices are re-scored
+// with their exact distance, loading their features from the index.
+// Only CEDD, FCTH and JCD have approximate distances on the scale of their exact ones, any other
+// feature has to be reranked, since its codes only give squared euclidean distances.
+public class PqSearchProvider implements SearchProvider {
+    private final String m_featureName;
+    private final String fieldName;
+    private final Set<String> fieldsToLoad;
+    private final TrainingIndex trainingIndex;
+    private final ProductQuantizer[] quantizers;
+    private final ProductQuantizer.Query[] queries;
+    private final LireFeature queryFeature;
+    private final LireFeature scratchFeature;
+    private final int rerank;
+    private TopKSelector candidates = null;
+
+    PqSearchProvider(String featureName, TrainingIndex trainingIndex, ProductQuantizer[] quantizers, int rerank) throws ClassNotFoundException, IllegalAccessException, InstantiationException {
+        if (rerank <= 0 && !FeatureMatrix.isTanimotoFeature(featureName))
+            throw new IllegalArgumentException("pq search of feature " + featureName + " requires rerank > 0.");
+        Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(Features.getClassName(featureName));
+        queryFeature = c.newInstance();
+        scratchFeature = c.newInstance();
+        fieldName = queryFeature.getFieldName();
+        fieldsToLoad = Collections.singleton(fieldName);
+        m_featureName = featureName;
+        this.trainingIndex = trainingIndex;
+        this.quantizers = quantizers;
+        queries = new ProductQuantizer.Query[quantizers.length];
+        for (int i = 0; i < quantizers.length; ++i)
+            queries[i] = quantizers[i].newQuery();
+        this.rerank = rerank;
+    }
+
+    public String featureName() { return m_featureName; }
+
+    public void search(Document document, IndexReader reader, TopKSelector hits) throws IOException {
+        if (reader != trainingIndex.indexReader)
+            throw new IOException("the product quantization codes of feature " + m_featureName + " were not built for this index.");
+        BytesRef bytes = document.getBinaryValue(fieldName);
+        if (bytes == null)
+            throw new IOException("document does not contain feature " + m_featureName + ".");
+        queryFeature.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+        double[] histogram = queryFeature.getDoubleHistogram();
+        for (ProductQuantizer.Query query : queries)
+            query.set(histogram);
+
+        if (rerank <= 0) {
+            for (int i = 0; i < quantizers.length; ++i)
+                quantizers[i].search(queries[i], trainingIndex.docBase(i), hits);
+            return;
+        }
+        int numCandidates = Math.max(rerank, hits.capacity());
+        if (candidates == null || candidates.capacity() != numCandidates)
+            candidates = new TopKSelector(numCandidates);
+        candidates.reset();
+        for (int i = 0; i < quantizers.length; ++i)
+            quantizers[i].search(queries[i], trainingIndex.docBase(i), candidates);
+        for (int i = 0; i < candidates.size(); ++i) {
+            int docId = candidates.docId(i);
+            BytesRef candidateBytes = reader.document(docId, fieldsToLoad).getBinaryValue(fieldName);
+            if (candidateBytes == null) continue;
+            scratchFeature.setByteArrayRepresentation(candidateBytes.bytes, candidateBytes.offset, candidateBytes.length);
+            hits.insert(queryFeature.getDistance(scratchFeature), docId);
+        }
+    }
+}
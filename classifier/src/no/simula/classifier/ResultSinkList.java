@@ -0,0 +1,40 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.IOException;
+import java.util.ArrayList;
+
+public class ResultSinkList extends ArrayList<ResultSink> implements ResultSink {
+    public void write(Classification classification) throws IOException {
+        for (ResultSink sink : this)
+            sink.write(classification);
+    }
+
+    public void skip(String imagePath) throws IOException {
+        for (ResultSink sink : this)
+            sink.skip(imagePath);
+    }
+
+    public void close() throws IOException {
+        for (ResultSink sink : this)
+            sink.close();
+    }
+}
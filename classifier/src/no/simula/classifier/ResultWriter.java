@@ -0,0 +1,44 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import java.io.BufferedWriter;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+// The output of a result sink. Records are flushed at most once per flushInterval, so that the
+// results of a long run become visible while it is running without a write call per classification.
+class ResultWriter extends BufferedWriter {
+    private static final long flushInterval = TimeUnit.SECONDS.toNanos(1);
+    private long lastFlush = System.nanoTime();
+
+    ResultWriter(String fileName) throws IOException {
+        super(new FileWriter(fileName), 1 << 16);
+    }
+
+    // Called after every record.
+    void endRecord() throws IOException {
+        long now = System.nanoTime();
+        if (now - lastFlush < flushInterval) return;
+        flush();
+        lastFlush = now;
+    }
+}
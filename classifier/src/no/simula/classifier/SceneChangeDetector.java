@@ -0,0 +1,78 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+
+// Compares video frames by small grayscale thumbnails, to find the frames that differ from the last
+// key frame enough to be classified again. The difference is the mean absolute difference of the
+// thumbnail pixels (0 - 255). A detector must only be used by a single thread.
+class SceneChangeDetector {
+    private static final Size thumbnailSize = new Size(32, 18);
+
+    private final double threshold;
+    private final int maximumSkippedFrames;
+    private final Mat thumbnail = new Mat();
+    private final Mat grayThumbnail = new Mat();
+    private byte[] keyFramePixels = new byte[(int) thumbnailSize.area()];
+    private byte[] pixels = new byte[(int) thumbnailSize.area()];
+    private boolean hasKeyFrame = false;
+    private int skippedFrames = 0;
+
+    SceneChangeDetector(double threshold, int maximumSkippedFrames) {
+        this.threshold = threshold;
+        this.maximumSkippedFrames = maximumSkippedFrames;
+    }
+
+    // Forgets the key frame, e.g. after seeking.
+    void reset() {
+        hasKeyFrame = false;
+    }
+
+    // Returns true if frame has to be classified, and makes it the new key frame.
+    boolean isSceneChange(Mat frame) {
+        Imgproc.resize(frame, thumbnail, thumbnailSize, 0, 0, Imgproc.INTER_AREA);
+        if (thumbnail.channels() == 1)
+            thumbnail.copyTo(grayThumbnail);
+        else
+            Imgproc.cvtColor(thumbnail, grayThumbnail, Imgproc.COLOR_BGR2GRAY);
+        grayThumbnail.get(0, 0, pixels);
+
+        if (hasKeyFrame && skippedFrames < maximumSkippedFrames && difference(keyFramePixels, pixels) <= threshold) {
+            ++skippedFrames;
+            return false;
+        }
+        byte[] previousKeyFramePixels = keyFramePixels;
+        keyFramePixels = pixels;
+        pixels = previousKeyFramePixels;
+        hasKeyFrame = true;
+        skippedFrames = 0;
+        return true;
+    }
+
+    private static double difference(byte[] a, byte[] b) {
+        long sum = 0;
+        for (int i = 0; i < a.length; ++i)
+            sum += Math.abs((a[i] & 0xff) - (b[i] & 0xff));
+        return (double) sum / a.length;
+    }
+}
@@ -0,0 +1,33 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import no.simula.common.TopKSelector;
+
+import java.io.IOException;
+
+// Finds the training documents closest to a query document. Matches are offered to hits
+// by docId, so callers never need to load the matching documents themselves.
+public interface SearchProvider {
+    String featureName();
+    void search(Document document, IndexReader reader, TopKSelector hits) throws IOException;
+}
@@ -0,0 +1,58 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import no.simula.common.StageMetrics;
+import no.simula.common.StageTimer;
+import no.simula.common.TopKSelector;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Runs an independent search for every feature, one after the other, and times each of them.
+public class SequentialSearchProvider implements MultiFeatureSearchProvider {
+    private final List<? extends SearchProvider> searchProviders;
+    private final List<String> featureNames = new ArrayList<String>();
+    private final StageTimer[] searchTimers;
+
+    SequentialSearchProvider(List<? extends SearchProvider> searchProviders) {
+        this.searchProviders = searchProviders;
+        searchTimers = new StageTimer[searchProviders.size()];
+        for (SearchProvider searchProvider : searchProviders) {
+            searchTimers[featureNames.size()] = StageMetrics.timer("classify.search." + searchProvider.featureName());
+            featureNames.add(searchProvider.featureName());
+        }
+    }
+
+    public List<String> featureNames() {
+        return featureNames;
+    }
+
+    public void search(Document document, IndexReader reader, TopKSelector[] hits) throws IOException {
+        for (int i = 0; i < searchProviders.size(); ++i) {
+            long startTime = searchTimers[i].start();
+            searchProviders.get(i).search(document, reader, hits[i]);
+            searchTimers[i].stop(startTime);
+        }
+    }
+}
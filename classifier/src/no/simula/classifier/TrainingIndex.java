@@ -0,0 +1,77 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.classifier;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// All training indices presented as a single collection, so that a query is answered by one
+// search and one global top-k selection instead of one per index.
+// DocIds of the merged reader are the docIds of a part shifted by the docBase of that part.
+public class TrainingIndex {
+    private static final SampleType[] sampleTypes = SampleType.values();
+
+    public final IndexReader indexReader;
+    private final ArrayList<AugmentedIndexReader> parts;
+    private final int[] docBases;
+    private final byte[] labels;
+
+    public TrainingIndex(List<AugmentedIndexReader> augmentedReaders) throws IOException {
+        parts = new ArrayList<AugmentedIndexReader>(augmentedReaders);
+        IndexReader[] subReaders = new IndexReader[parts.size()];
+        docBases = new int[parts.size()];
+        int maxDoc = 0;
+        for (int i = 0; i < parts.size(); ++i) {
+            subReaders[i] = parts.get(i).indexReader;
+            docBases[i] = maxDoc;
+            maxDoc += subReaders[i].maxDoc();
+        }
+        indexReader = new MultiReader(subReaders, false);
+        labels = new byte[maxDoc];
+        for (int i = 0; i < parts.size(); ++i) {
+            byte[] partLabels = parts.get(i).getLabels();
+            System.arraycopy(partLabels, 0, labels, docBases[i], partLabels.length);
+        }
+    }
+
+    public int numParts() {
+        return parts.size();
+    }
+
+    public AugmentedIndexReader part(int i) {
+        return parts.get(i);
+    }
+
+    public int docBase(int i) {
+        return docBases[i];
+    }
+
+    byte[] getLabels() {
+        return labels;
+    }
+
+    public SampleType getSampleType(int docId) {
+        return sampleTypes[labels[docId]];
+    }
+}
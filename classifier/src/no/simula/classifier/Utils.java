@@ -20,10 +20,9 @@
 package no.simula.classifier;
 
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
 import java.io.Console;
 import java.io.File;
-import java.util.Comparator;
-import java.util.PriorityQueue;
 
 import net.semanticmetadata.lire.DocumentBuilder;
 import org.apache.lucene.document.Document;
@@ -56,23 +55,16 @@ public class Utils {
     public static class MutableInt {
         private int value = 0;
         public void increment() { ++value; }
+        public void add(int n) { value += n; }
         public int get() { return value; }
     }
 
-    public static class MutableFloat {
-        private float value = 0;
-        private int increments = 0;
-        public void increment(float diff) { value += diff; ++increments; }
-        public float get() { return value; }
-        public int getIncrements() { return increments; }
-    }
-
     public static String padRight(String s, int n) {
         return String.format("%1$-" + n + "s", s);
     }
 
 
-    private static SampleType getSampleTypeFromName(String imagePath) {
+    static SampleType getSampleTypeFromName(String imagePath) {
         char firstChar = imagePath.charAt(imagePath.lastIndexOf(File.separator) + 1);
         if (firstChar == 'p') return SampleType.POSITIVE;
         if (firstChar == 'n') return SampleType.NEGATIVE;
@@ -87,54 +79,22 @@ public class Utils {
         return getSampleTypeFromName(imagePath);
     }
 
-    public static class MaxHeapComparator implements Comparator<PrioritizedDocument> {
-        public int compare(PrioritizedDocument x, PrioritizedDocument y)
-        {
-            float c = y.score - x.score;
-            if (c < 0) return -1;
-            if (c > 0) return 1;
-            return 0;
-        }
-    }
-
-    public static class PrioritizedDocument {
-        Document document;
-        float score;
-        public PrioritizedDocument(float score, Document document) {
-            this.score = score;
-            this.document = document;
-        }
-    }
-
-    public static class MaxHeap extends PriorityQueue<PrioritizedDocument> {
-        private int maximumSize;
-        public MaxHeap(int maximumSize) {
-            super(maximumSize, new MaxHeapComparator());
-            this.maximumSize = maximumSize;
-        }
-
-        public void insert(float score, Document document) {
-            PrioritizedDocument top = peek();
-            if (top == null || size() < maximumSize) {
-                add(new PrioritizedDocument(score, document));
-            } else if (top.score > score) {
-                poll();
-                add(new PrioritizedDocument(score, document));
-            }
-        }
-    }
-
     public static String extractFileName(String filePath)
     {
         return filePath.substring(filePath.lastIndexOf(File.separator) + 1);
     }
 
     public static BufferedImage mat2Img(Mat img)
+    {
+        return mat2Img(img, null);
+    }
+
+    // Copies the pixels of img straight into the raster of target, if target has the same size and
+    // type. Otherwise a new image is allocated.
+    public static BufferedImage mat2Img(Mat img, BufferedImage target)
     {
         int width = img.cols();
         int height = img.rows();
-        byte[] data = new byte[width * height * (int)img.elemSize()];
-        img.get(0, 0, data);
 
         int type = 0;
         if(img.channels() == 1)
@@ -142,9 +102,11 @@ public class Utils {
         else
             type = BufferedImage.TYPE_3BYTE_BGR;
 
-        BufferedImage bufferedImage = new BufferedImage(width, height, type);
-        bufferedImage.getRaster().setDataElements(0, 0, width, height, data);
-        return bufferedImage;
+        if (target == null || target.getWidth() != width || target.getHeight() != height || target.getType() != type)
+            target = new BufferedImage(width, height, type);
+        byte[] data = ((DataBufferByte) target.getRaster().getDataBuffer()).getData();
+        img.get(0, 0, data);
+        return target;
     }
 
 }
@@ -0,0 +1,424 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+
+// All values of a single feature of an index, decoded once and kept in flat primitive arrays.
+// Rows are indexed by docId. Features compared with LIRE's Tanimoto coefficient are stored as
+// normalised histograms, so a distance is a single dot product. Any other feature keeps its
+// serialized representation in one contiguous block and is compared through LireFeature.getDistance().
+public class FeatureMatrix {
+    private static final float ABSENT = -1f;
+    private static final int MAGIC = 0x464d4154; // "FMAT"
+    private static final int VERSION = 1;
+    private static final int maximumMappedBytes = 1 << 30;
+    private static final int HEADER_SIZE = 24;
+    public static final String SNAPSHOT_SUFFIX = ".matrix";
+
+    private final String featureName;
+    private final Class<? extends LireFeature> featureClass;
+    private final int numRows;
+
+    // layout for tanimoto features
+    private int dimensions = 0;
+    private float[] vectors = null;
+    private float[] squaredNorms = null;
+
+    // layout for any other feature
+    private byte[] representations = null;
+    private int[] offsets = null;
+
+    private FeatureMatrix(String featureName, int numRows) throws IOException {
+        this.featureName = featureName;
+        this.numRows = numRows;
+        try {
+            featureClass = (Class<? extends LireFeature>) Class.forName(Features.getClassName(featureName));
+        } catch (ClassNotFoundException e) {
+            throw new IOException("invalid feature name: " + featureName, e);
+        }
+    }
+
+    public FeatureMatrix(IndexReader reader, String featureName) throws IOException {
+        this.featureName = featureName;
+        try {
+            featureClass = (Class<? extends LireFeature>) Class.forName(Features.getClassName(featureName));
+            LireFeature feature = featureClass.newInstance();
+            numRows = reader.maxDoc();
+            if (isTanimotoFeature(featureName))
+                loadHistograms(reader, feature);
+            else
+                loadRepresentations(reader, feature);
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IOException("invalid feature name: " + featureName, e);
+        }
+    }
+
+    // CEDD, FCTH and JCD all implement getDistance() as the tanimoto coefficient of their histograms.
+    public static boolean isTanimotoFeature(String featureName) {
+        return featureName.equals("CEDD") || featureName.equals("FCTH") || featureName.equals("JCD");
+    }
+
+    private void loadHistograms(IndexReader reader, LireFeature feature) throws IOException {
+        String fieldName = feature.getFieldName();
+        Set<String> fieldsToLoad = Collections.singleton(fieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        squaredNorms = new float[numRows];
+        for (int docId = 0; docId < numRows; ++docId) {
+            squaredNorms[docId] = ABSENT;
+            if (liveDocs != null && !liveDocs.get(docId)) continue;
+            BytesRef bytes = reader.document(docId, fieldsToLoad).getBinaryValue(fieldName);
+            if (bytes == null) continue;
+            feature.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+            double[] histogram = feature.getDoubleHistogram();
+            if (vectors == null) {
+                dimensions = histogram.length;
+                vectors = new float[numRows * dimensions];
+            } else if (histogram.length != dimensions) {
+                throw new IOException("inconsistent dimensions for feature " + featureName + " in document " + docId);
+            }
+            squaredNorms[docId] = normalize(histogram, vectors, docId * dimensions);
+        }
+    }
+
+    private void loadRepresentations(IndexReader reader, LireFeature feature) throws IOException {
+        String fieldName = feature.getFieldName();
+        Set<String> fieldsToLoad = Collections.singleton(fieldName);
+        Bits liveDocs = MultiFields.getLiveDocs(reader);
+        ByteArrayOutputStream block = new ByteArrayOutputStream();
+        offsets = new int[numRows + 1];
+        for (int docId = 0; docId < numRows; ++docId) {
+            offsets[docId] = block.size();
+            if (liveDocs != null && !liveDocs.get(docId)) continue;
+            Document document = reader.document(docId, fieldsToLoad);
+            BytesRef bytes = document.getBinaryValue(fieldName);
+            if (bytes != null)
+                block.write(bytes.bytes, bytes.offset, bytes.length);
+        }
+        offsets[numRows] = block.size();
+        representations = block.toByteArray();
+    }
+
+    // The rows of all parts one after another, the same as the matrix of a MultiReader over their readers.
+    public static FeatureMatrix concatenate(String featureName, List<FeatureMatrix> parts) throws IOException {
+        if (parts.size() == 1)
+            return parts.get(0);
+        int numRows = 0;
+        int dimensions = 0;
+        for (FeatureMatrix part : parts) {
+            numRows += part.numRows;
+            if (part.dimensions == 0) continue;
+            if (dimensions != 0 && part.dimensions != dimensions)
+                throw new IOException("inconsistent dimensions for feature " + featureName);
+            dimensions = part.dimensions;
+        }
+        FeatureMatrix matrix = new FeatureMatrix(featureName, numRows);
+        int row = 0;
+        if (isTanimotoFeature(featureName)) {
+            matrix.dimensions = dimensions;
+            matrix.squaredNorms = new float[numRows];
+            if (dimensions > 0)
+                matrix.vectors = new float[numRows * dimensions];
+            for (FeatureMatrix part : parts) {
+                System.arraycopy(part.squaredNorms, 0, matrix.squaredNorms, row, part.numRows);
+                if (part.vectors != null)
+                    System.arraycopy(part.vectors, 0, matrix.vectors, row * dimensions, part.numRows * dimensions);
+                row += part.numRows;
+            }
+        } else {
+            int length = 0;
+            for (FeatureMatrix part : parts)
+                length += part.representations.length;
+            matrix.offsets = new int[numRows + 1];
+            matrix.representations = new byte[length];
+            int offset = 0;
+            for (FeatureMatrix part : parts) {
+                for (int i = 0; i < part.numRows; ++i)
+                    matrix.offsets[row + i] = offset + part.offsets[i];
+                System.arraycopy(part.representations, 0, matrix.representations, offset, part.representations.length);
+                row += part.numRows;
+                offset += part.representations.length;
+            }
+            matrix.offsets[numRows] = offset;
+        }
+        return matrix;
+    }
+
+    // Snapshots store the decoded matrix of an index, so that it can be mapped and copied in bulk
+    // instead of decoding every stored document again. They are only valid for the exact version
+    // of the index they were written from.
+    public static File getSnapshotFile(File indexDirectory, String featureName) {
+        return new File(indexDirectory, featureName + SNAPSHOT_SUFFIX);
+    }
+
+    // The snapshot is written to a temporary file next to file and then renamed, so that a concurrent
+    // or interrupted run never leaves a half-written snapshot under the final name.
+    public void writeSnapshot(File file, long indexVersion) throws IOException {
+        File temporaryFile = File.createTempFile(file.getName(), ".tmp", file.getAbsoluteFile().getParentFile());
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporaryFile), 1 << 16));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(indexVersion);
+                out.writeInt(numRows);
+                out.writeInt(dimensions);
+                if (isTanimotoFeature(featureName)) {
+                    writeFloats(out, squaredNorms);
+                    if (vectors != null)
+                        writeFloats(out, vectors);
+                } else {
+                    ByteBuffer buffer = ByteBuffer.allocate(offsets.length * 4);
+                    buffer.asIntBuffer().put(offsets);
+                    out.write(buffer.array());
+                    out.write(representations);
+                }
+            } finally {
+                out.close();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            temporaryFile.delete();
+        }
+    }
+
+    private static void writeFloats(DataOutputStream out, float[] values) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        for (int start = 0; start < values.length; start += buffer.capacity() / 4) {
+            int length = Math.min(buffer.capacity() / 4, values.length - start);
+            buffer.clear();
+            buffer.asFloatBuffer().put(values, start, length);
+            out.write(buffer.array(), 0, length * 4);
+        }
+    }
+
+    // Returns null if the snapshot does not belong to the given version of the index, or cannot be read,
+    // in which case the caller decodes the index and writes a new snapshot.
+    public static FeatureMatrix readSnapshot(File file, String featureName, long indexVersion, int numRows) {
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                long size = channel.size();
+                if (size < HEADER_SIZE)
+                    return null;
+                ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+                if (header.getInt() != MAGIC || header.getInt() != VERSION || header.getLong() != indexVersion || header.getInt() != numRows)
+                    return null;
+                FeatureMatrix matrix = new FeatureMatrix(featureName, numRows);
+                matrix.dimensions = header.getInt();
+                long position = HEADER_SIZE;
+                if (isTanimotoFeature(featureName)) {
+                    if (matrix.dimensions < 0 || size != position + 4L * numRows * (1L + matrix.dimensions))
+                        return null;
+                    matrix.squaredNorms = new float[numRows];
+                    position = readFloats(channel, position, matrix.squaredNorms);
+                    if (matrix.dimensions > 0) {
+                        matrix.vectors = new float[numRows * matrix.dimensions];
+                        readFloats(channel, position, matrix.vectors);
+                    }
+                } else {
+                    if (size < position + 4L * (numRows + 1))
+                        return null;
+                    matrix.offsets = new int[numRows + 1];
+                    ByteBuffer offsetBytes = channel.map(FileChannel.MapMode.READ_ONLY, position, 4L * matrix.offsets.length);
+                    offsetBytes.asIntBuffer().get(matrix.offsets);
+                    position += 4L * matrix.offsets.length;
+                    if (matrix.offsets[numRows] < 0 || size != position + matrix.offsets[numRows])
+                        return null;
+                    matrix.representations = new byte[matrix.offsets[numRows]];
+                    for (int start = 0; start < matrix.representations.length; start += maximumMappedBytes) {
+                        int length = Math.min(maximumMappedBytes, matrix.representations.length - start);
+                        channel.map(FileChannel.MapMode.READ_ONLY, position + start, length).get(matrix.representations, start, length);
+                    }
+                }
+                return matrix;
+            } finally {
+                input.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            System.out.println("could not read " + file + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    // Copies the floats at position of channel into target, and returns the position after them.
+    private static long readFloats(FileChannel channel, long position, float[] target) throws IOException {
+        int maximumFloats = maximumMappedBytes / 4;
+        for (int start = 0; start < target.length; start += maximumFloats) {
+            int length = Math.min(maximumFloats, target.length - start);
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position + 4L * start, 4L * length);
+            buffer.asFloatBuffer().get(target, start, length);
+        }
+        return position + 4L * target.length;
+    }
+
+    // Writes histogram / sum(histogram) to target and returns its squared norm (0 for an empty histogram).
+    static float normalize(double[] histogram, float[] target, int offset) {
+        double sum = 0;
+        for (double value : histogram) sum += value;
+        double squaredNorm = 0;
+        for (int i = 0; i < histogram.length; ++i) {
+            double value = sum > 0 ? histogram[i] / sum : 0;
+            target[offset + i] = (float) value;
+            squaredNorm += value * value;
+        }
+        return (float) squaredNorm;
+    }
+
+    public String featureName() {
+        return featureName;
+    }
+
+    public LireFeature newFeature() {
+        try {
+            return featureClass.newInstance();
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    // A query prepared for comparison against the rows of any matrix of the same feature.
+    public static class Query {
+        private final LireFeature feature;
+        private final LireFeature scratch;
+        private final boolean tanimoto;
+        private float[] vector = new float[0];
+        private float squaredNorm = 0;
+
+        public Query(LireFeature feature, LireFeature scratch, String featureName) {
+            this.feature = feature;
+            this.scratch = scratch;
+            tanimoto = isTanimotoFeature(featureName);
+        }
+
+        public void set(byte[] bytes, int offset, int length) {
+            feature.setByteArrayRepresentation(bytes, offset, length);
+            if (!tanimoto) return;
+            double[] histogram = feature.getDoubleHistogram();
+            if (vector.length != histogram.length)
+                vector = new float[histogram.length];
+            squaredNorm = normalize(histogram, vector, 0);
+        }
+    }
+
+    public Query newQuery() {
+        return new Query(newFeature(), newFeature(), featureName);
+    }
+
+    // Turns query into the value of the given row, which must contain this feature.
+    public void setQuery(Query query, int row) {
+        if (vectors != null) {
+            if (query.vector.length != dimensions)
+                query.vector = new float[dimensions];
+            System.arraycopy(vectors, row * dimensions, query.vector, 0, dimensions);
+            query.squaredNorm = squaredNorms[row];
+        } else {
+            query.feature.setByteArrayRepresentation(representations, offsets[row], offsets[row + 1] - offsets[row]);
+        }
+    }
+
+    // False if query has other dimensions than the rows, so that every distance would be NaN.
+    public boolean fits(Query query) {
+        return vectors == null || query.vector.length == dimensions;
+    }
+
+    public boolean contains(int row) {
+        if (vectors != null) return squaredNorms[row] != ABSENT;
+        if (representations != null) return offsets[row + 1] > offsets[row];
+        return false;
+    }
+
+    // The distance between query and the given row, or NaN if the row has no value for this feature.
+    public float distance(Query query, int row) {
+        if (vectors != null) {
+            float rowNorm = squaredNorms[row];
+            if (rowNorm == ABSENT || query.vector.length != dimensions) return Float.NaN;
+            return tanimoto(query.vector, query.squaredNorm, row * dimensions, rowNorm);
+        }
+        if (representations != null) {
+            int length = offsets[row + 1] - offsets[row];
+            if (length == 0) return Float.NaN;
+            query.scratch.setByteArrayRepresentation(representations, offsets[row], length);
+            return query.feature.getDistance(query.scratch);
+        }
+        return Float.NaN;
+    }
+
+    // Scans all rows and offers every distance to hits.
+    public void search(Query query, TopKSelector hits) {
+        if (vectors != null)
+            searchHistograms(query, hits);
+        else if (representations != null)
+            searchRepresentations(query, hits);
+    }
+
+    private float tanimoto(float[] q, float queryNorm, int offset, float rowNorm) {
+        if (rowNorm == 0 || queryNorm == 0)
+            return (rowNorm == 0 && queryNorm == 0) ? 0f : 100f;
+        double dot = 0;
+        for (int i = 0; i < dimensions; ++i)
+            dot += q[i] * vectors[offset + i];
+        return (float) (100 - 100 * (dot / (queryNorm + rowNorm - dot)));
+    }
+
+    private void searchHistograms(Query query, TopKSelector hits) {
+        if (!fits(query)) return;
+        for (int row = 0, offset = 0; row < numRows; ++row, offset += dimensions) {
+            float rowNorm = squaredNorms[row];
+            if (rowNorm == ABSENT) continue;
+            hits.insert(tanimoto(query.vector, query.squaredNorm, offset, rowNorm), row);
+        }
+    }
+
+    private void searchRepresentations(Query query, TopKSelector hits) {
+        for (int row = 0; row < numRows; ++row) {
+            int length = offsets[row + 1] - offsets[row];
+            if (length == 0) continue;
+            query.scratch.setByteArrayRepresentation(representations, offsets[row], length);
+            hits.insert(query.feature.getDistance(query.scratch), row);
+        }
+    }
+}
@@ -0,0 +1,319 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.Random;
+
+// A hierarchical navigable small world graph (Malkov & Yashunin) over the rows of a FeatureMatrix.
+// Nodes are docIds, so a graph is only valid for the exact index it was built from.
+// Only the links are stored; distances are always computed on the FeatureMatrix.
+public class HnswGraph {
+    private static final int MAGIC = 0x484e5357; // "HNSW"
+    private static final int VERSION = 1;
+    public static final String FILE_SUFFIX = ".hnsw";
+
+    private final int numRows;
+    private final int maxLinks;
+    private final int maxLinksLayer0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+    // links[node][level] holds the number of links followed by the linked nodes.
+    private final int[][][] links;
+
+    private HnswGraph(int numRows, int maxLinks) {
+        this.numRows = numRows;
+        this.maxLinks = maxLinks;
+        this.maxLinksLayer0 = 2 * maxLinks;
+        links = new int[numRows][][];
+    }
+
+    public static File getFile(File indexDirectory, String featureName) {
+        return new File(indexDirectory, featureName + FILE_SUFFIX);
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public static HnswGraph build(FeatureMatrix matrix, int maxLinks, int efConstruction, long seed) {
+        HnswGraph graph = new HnswGraph(matrix.numRows(), maxLinks);
+        double levelMultiplier = 1.0 / Math.log(Math.max(2, maxLinks));
+        Random random = new Random(seed);
+        Searcher searcher = graph.newSearcher(matrix, efConstruction);
+        FeatureMatrix.Query query = matrix.newQuery();
+        for (int row = 0; row < graph.numRows; ++row) {
+            if (!matrix.contains(row)) continue;
+            int level = (int) (-Math.log(1.0 - random.nextDouble()) * levelMultiplier);
+            graph.links[row] = new int[level + 1][];
+            for (int l = 0; l <= level; ++l)
+                graph.links[row][l] = new int[(l == 0 ? graph.maxLinksLayer0 : maxLinks) + 1];
+            if (graph.entryPoint < 0) {
+                graph.entryPoint = row;
+                graph.maxLevel = level;
+                continue;
+            }
+
+            matrix.setQuery(query, row);
+            int entry = graph.entryPoint;
+            for (int l = graph.maxLevel; l > level; --l)
+                entry = searcher.greedySearch(query, entry, l);
+            for (int l = Math.min(level, graph.maxLevel); l >= 0; --l) {
+                TopKSelector candidates = searcher.searchLayer(query, entry, l);
+                candidates.sort();
+                int[] neighbours = searcher.selectNeighbours(candidates, l == 0 ? graph.maxLinksLayer0 : maxLinks);
+                System.arraycopy(neighbours, 0, graph.links[row][l], 0, neighbours.length);
+                for (int i = 1; i <= neighbours[0]; ++i)
+                    searcher.addLink(neighbours[i], row, l);
+                entry = candidates.docId(0);
+            }
+            if (level > graph.maxLevel) {
+                graph.entryPoint = row;
+                graph.maxLevel = level;
+            }
+        }
+        return graph;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(numRows);
+            out.writeInt(maxLinks);
+            out.writeInt(entryPoint);
+            out.writeInt(maxLevel);
+            for (int[][] nodeLinks : links) {
+                if (nodeLinks == null) {
+                    out.writeByte(-1);
+                    continue;
+                }
+                out.writeByte(nodeLinks.length - 1);
+                for (int[] levelLinks : nodeLinks) {
+                    out.writeShort(levelLinks[0]);
+                    for (int i = 1; i <= levelLinks[0]; ++i)
+                        out.writeInt(levelLinks[i]);
+                }
+            }
+        } finally {
+            out.close();
+        }
+    }
+
+    public static HnswGraph read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a supported graph file.");
+            HnswGraph graph = new HnswGraph(in.readInt(), in.readInt());
+            graph.entryPoint = in.readInt();
+            graph.maxLevel = in.readInt();
+            for (int row = 0; row < graph.numRows; ++row) {
+                int level = in.readByte();
+                if (level < 0) continue;
+                graph.links[row] = new int[level + 1][];
+                for (int l = 0; l <= level; ++l) {
+                    int[] levelLinks = new int[(l == 0 ? graph.maxLinksLayer0 : graph.maxLinks) + 1];
+                    levelLinks[0] = in.readShort();
+                    for (int i = 1; i <= levelLinks[0]; ++i)
+                        levelLinks[i] = in.readInt();
+                    graph.links[row][l] = levelLinks;
+                }
+            }
+            return graph;
+        } finally {
+            in.close();
+        }
+    }
+
+    // The scratch state of a search. A searcher must only be used by a single thread.
+    public Searcher newSearcher(FeatureMatrix matrix, int ef) {
+        return new Searcher(matrix, 0, ef);
+    }
+
+    // A searcher for a graph whose rows start at rowOffset in matrix, as when the matrix holds
+    // several indices one after another. Hits are reported as rows of matrix.
+    public Searcher newSearcher(FeatureMatrix matrix, int rowOffset, int ef) {
+        if (rowOffset < 0 || rowOffset + numRows > matrix.numRows())
+            throw new IllegalArgumentException("graph does not fit into the feature matrix at row " + rowOffset + ".");
+        return new Searcher(matrix, rowOffset, ef);
+    }
+
+    public class Searcher {
+        private final FeatureMatrix matrix;
+        private final int rowOffset;
+        private final FeatureMatrix.Query scratchQuery;
+        private final TopKSelector results;
+        private final int[] visited;
+        private int visitMark = 0;
+        private float[] queueScores = new float[64];
+        private int[] queueNodes = new int[64];
+        private int queueSize = 0;
+
+        private Searcher(FeatureMatrix matrix, int rowOffset, int ef) {
+            this.matrix = matrix;
+            this.rowOffset = rowOffset;
+            scratchQuery = matrix.newQuery();
+            results = new TopKSelector(Math.max(1, ef));
+            visited = new int[numRows];
+        }
+
+        // Offers the nearest neighbours of query found on the bottom layer to hits.
+        public void search(FeatureMatrix.Query query, TopKSelector hits) {
+            if (entryPoint < 0 || !matrix.fits(query)) return;
+            int entry = entryPoint;
+            for (int l = maxLevel; l > 0; --l)
+                entry = greedySearch(query, entry, l);
+            TopKSelector candidates = searchLayer(query, entry, 0);
+            for (int i = 0; i < candidates.size(); ++i)
+                hits.insert(candidates.score(i), rowOffset + candidates.docId(i));
+        }
+
+        private float distance(FeatureMatrix.Query query, int node) {
+            return matrix.distance(query, rowOffset + node);
+        }
+
+        private void setQuery(FeatureMatrix.Query query, int node) {
+            matrix.setQuery(query, rowOffset + node);
+        }
+
+        private int greedySearch(FeatureMatrix.Query query, int entry, int level) {
+            float entryDistance = distance(query, entry);
+            boolean changed = true;
+            while (changed) {
+                changed = false;
+                int[] levelLinks = links[entry][level];
+                for (int i = 1; i <= levelLinks[0]; ++i) {
+                    float linkDistance = distance(query, levelLinks[i]);
+                    if (linkDistance < entryDistance) {
+                        entryDistance = linkDistance;
+                        entry = levelLinks[i];
+                        changed = true;
+                    }
+                }
+            }
+            return entry;
+        }
+
+        // The ef nearest nodes to query on the given level, in no particular order.
+        private TopKSelector searchLayer(FeatureMatrix.Query query, int entry, int level) {
+            if (++visitMark == Integer.MAX_VALUE) {
+                Arrays.fill(visited, 0);
+                visitMark = 1;
+            }
+            results.reset();
+            queueSize = 0;
+            float entryDistance = distance(query, entry);
+            visited[entry] = visitMark;
+            results.insert(entryDistance, entry);
+            push(entryDistance, entry);
+            while (queueSize > 0) {
+                float distance = queueScores[0];
+                int node = pop();
+                if (results.isFull() && distance > results.worstScore()) break;
+                int[] levelLinks = links[node][level];
+                for (int i = 1; i <= levelLinks[0]; ++i) {
+                    int neighbour = levelLinks[i];
+                    if (visited[neighbour] == visitMark) continue;
+                    visited[neighbour] = visitMark;
+                    float neighbourDistance = distance(query, neighbour);
+                    if (Float.isNaN(neighbourDistance)) continue; // NaN would break the order of the queue.
+                    if (!results.isFull() || neighbourDistance < results.worstScore()) {
+                        results.insert(neighbourDistance, neighbour);
+                        push(neighbourDistance, neighbour);
+                    }
+                }
+            }
+            return results;
+        }
+
+        // The heuristic of the paper: a candidate is only linked if it is closer to the new node
+        // than to any neighbour selected so far, which keeps links spread across clusters.
+        // candidates must be sorted. Returns the number of neighbours followed by their ids.
+        private int[] selectNeighbours(TopKSelector candidates, int maximum) {
+            int[] selected = new int[maximum + 1];
+            for (int i = 0; i < candidates.size() && selected[0] < maximum; ++i) {
+                int candidate = candidates.docId(i);
+                setQuery(scratchQuery, candidate);
+                boolean keep = true;
+                for (int j = 1; j <= selected[0] && keep; ++j)
+                    keep = distance(scratchQuery, selected[j]) >= candidates.score(i);
+                if (keep)
+                    selected[++selected[0]] = candidate;
+            }
+            return selected;
+        }
+
+        private void addLink(int node, int newNeighbour, int level) {
+            int[] levelLinks = links[node][level];
+            int maximum = levelLinks.length - 1;
+            if (levelLinks[0] < maximum) {
+                levelLinks[++levelLinks[0]] = newNeighbour;
+                return;
+            }
+            TopKSelector candidates = new TopKSelector(maximum + 1);
+            setQuery(scratchQuery, node);
+            for (int i = 1; i <= levelLinks[0]; ++i)
+                candidates.insert(distance(scratchQuery, levelLinks[i]), levelLinks[i]);
+            candidates.insert(distance(scratchQuery, newNeighbour), newNeighbour);
+            candidates.sort();
+            int[] selected = selectNeighbours(candidates, maximum);
+            System.arraycopy(selected, 0, levelLinks, 0, selected.length);
+        }
+
+        private void push(float score, int node) {
+            if (queueSize == queueScores.length) {
+                queueScores = Arrays.copyOf(queueScores, 2 * queueSize);
+                queueNodes = Arrays.copyOf(queueNodes, 2 * queueSize);
+            }
+            int i = queueSize++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (queueScores[parent] <= score) break;
+                queueScores[i] = queueScores[parent];
+                queueNodes[i] = queueNodes[parent];
+                i = parent;
+            }
+            queueScores[i] = score;
+            queueNodes[i] = node;
+        }
+
+        private int pop() {
+            int top = queueNodes[0];
+            float score = queueScores[--queueSize];
+            int node = queueNodes[queueSize];
+            int i = 0;
+            while (true) {
+                int child = 2 * i + 1;
+                if (child >= queueSize) break;
+                if (child + 1 < queueSize && queueScores[child + 1] < queueScores[child]) ++child;
+                if (queueScores[child] >= score) break;
+                queueScores[i] = queueScores[child];
+                queueNodes[i] = queueNodes[child];
+                i = child;
+            }
+            queueScores[i] = score;
+            queueNodes[i] = node;
+            return top;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+
+// Counts latencies in nanoseconds in log-linear buckets like an HdrHistogram: every power of two is
+// split into 32 buckets, so a recorded value is off by at most 1/32 (about 3%), up to about half an
+// hour. Recording only writes to counts of the calling thread, so threads never contend; readers sum
+// up the counts of all threads, and may miss the values recorded while they read.
+public class LatencyHistogram {
+    private static final int subBucketBits = 5;
+    private static final int subBuckets = 1 << subBucketBits;
+    private static final int maximumExponent = 40;
+    private static final long maximumValue = (1L << (maximumExponent + 1)) - 1;
+    private static final int numBuckets = (maximumExponent - subBucketBits + 2) * subBuckets;
+    // behind the buckets every thread keeps its number of values, their sum and their maximum.
+    private static final int COUNT = numBuckets;
+    private static final int SUM = numBuckets + 1;
+    private static final int MAX = numBuckets + 2;
+
+    private final CopyOnWriteArrayList<long[]> threadCounts = new CopyOnWriteArrayList<long[]>();
+    private final ThreadLocal<long[]> counts = ThreadLocal.withInitial(() -> {
+        long[] threadCount = new long[numBuckets + 3];
+        threadCounts.add(threadCount);
+        return threadCount;
+    });
+
+    static int bucket(long value) {
+        if (value < subBuckets)
+            return (int) Math.max(value, 0);
+        if (value > maximumValue)
+            value = maximumValue;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - subBucketBits;
+        return (shift + 1) * subBuckets + (int) ((value >>> shift) & (subBuckets - 1));
+    }
+
+    // The middle of the values counted in a bucket.
+    static long bucketValue(int bucket) {
+        if (bucket < subBuckets)
+            return bucket;
+        int shift = bucket / subBuckets - 1;
+        long lowest = (long) (subBuckets + bucket % subBuckets) << shift;
+        return lowest + ((1L << shift) >> 1);
+    }
+
+    public void record(long nanos) {
+        long[] threadCount = counts.get();
+        ++threadCount[bucket(nanos)];
+        ++threadCount[COUNT];
+        threadCount[SUM] += nanos;
+        if (nanos > threadCount[MAX])
+            threadCount[MAX] = nanos;
+    }
+
+    // The counts of all threads at the time of the call.
+    public Snapshot snapshot() {
+        long[] sum = new long[numBuckets + 3];
+        for (long[] threadCount : threadCounts) {
+            for (int i = 0; i < MAX; ++i)
+                sum[i] += threadCount[i];
+            sum[MAX] = Math.max(sum[MAX], threadCount[MAX]);
+        }
+        return new Snapshot(sum);
+    }
+
+    public static class Snapshot {
+        private final long[] counts;
+
+        private Snapshot(long[] counts) {
+            this.counts = counts;
+        }
+
+        public long count() {
+            return counts[COUNT];
+        }
+
+        public long sum() {
+            return counts[SUM];
+        }
+
+        public long max() {
+            return counts[MAX];
+        }
+
+        public double mean() {
+            return counts[COUNT] == 0 ? 0 : (double) counts[SUM] / counts[COUNT];
+        }
+
+        // The latency percentile percent of the values are at most, e.g. 99 for the 99th percentile.
+        public long percentile(double percentile) {
+            if (percentile >= 100)
+                return counts[MAX];
+            // the counts of the buckets may be ahead of the count, if a thread recorded while the snapshot was taken.
+            long rank = (long) Math.ceil(percentile / 100 * counts[COUNT]);
+            long seen = 0;
+            for (int bucket = 0; bucket < numBuckets; ++bucket) {
+                seen += counts[bucket];
+                if (seen >= rank && seen > 0)
+                    return Math.min(bucketValue(bucket), counts[MAX]);
+            }
+            return counts[MAX];
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import net.semanticmetadata.lire.AbstractDocumentBuilder;
+import net.semanticmetadata.lire.DocumentBuilder;
+import net.semanticmetadata.lire.imageanalysis.CEDD;
+import net.semanticmetadata.lire.imageanalysis.FCTH;
+import net.semanticmetadata.lire.imageanalysis.JCD;
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
+import net.semanticmetadata.lire.indexing.hashing.BitSampling;
+import net.semanticmetadata.lire.utils.ImageUtils;
+import net.semanticmetadata.lire.utils.SerializationUtils;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.util.BytesRef;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+// Extracts several features from an image, with the same fields as a ChainedDocumentBuilder of one
+// hashing GenericDocumentBuilder per feature, so that indices stay compatible.
+// The work the features share is only done once: every GenericDocumentBuilder would scale the
+// image to MAX_IMAGE_DIMENSION on its own, here it is scaled once for all of them. And since JCD
+// joins CEDD and FCTH, it is computed from them instead of extracting both again, if they are
+// extracted anyway.
+// A builder keeps no state between images (GenericDocumentBuilder creates a new feature for every
+// image), so it can be shared by threads.
+public class MultiFeatureDocumentBuilder extends AbstractDocumentBuilder {
+    private final ArrayList<GenericDocumentBuilder> builders = new ArrayList<GenericDocumentBuilder>();
+    private final boolean joinJcd;
+    private final int maxDimension;
+    private final String ceddFieldName = new CEDD().getFieldName();
+    private final String fcthFieldName = new FCTH().getFieldName();
+    private final String jcdFieldName = new JCD().getFieldName();
+
+    public MultiFeatureDocumentBuilder(List<String> featureNames) throws ClassNotFoundException, IOException {
+        this(featureNames, DocumentBuilder.MAX_IMAGE_DIMENSION);
+    }
+
+    // Images are scaled down to maxDimension, but never beyond MAX_IMAGE_DIMENSION.
+    public MultiFeatureDocumentBuilder(List<String> featureNames, int maxDimension) throws ClassNotFoundException, IOException {
+        this.maxDimension = maxDimension > 0 ? Math.min(maxDimension, DocumentBuilder.MAX_IMAGE_DIMENSION) : DocumentBuilder.MAX_IMAGE_DIMENSION;
+        joinJcd = featureNames.contains("JCD") && featureNames.contains("CEDD") && featureNames.contains("FCTH");
+        for (String featureName : featureNames) {
+            Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(Features.getClassName(featureName));
+            if (joinJcd && c == JCD.class) continue;
+            builders.add(new GenericDocumentBuilder(c, true));
+        }
+        if (joinJcd)
+            BitSampling.readHashFunctions();
+    }
+
+    public Field[] createDescriptorFields(BufferedImage image) {
+        BufferedImage scaledImage = image;
+        if (Math.max(image.getHeight(), image.getWidth()) > maxDimension)
+            scaledImage = ImageUtils.scaleImage(image, maxDimension);
+
+        ArrayList<Field> fields = new ArrayList<Field>();
+        CEDD cedd = null;
+        FCTH fcth = null;
+        for (GenericDocumentBuilder builder : builders) {
+            for (Field field : builder.createDescriptorFields(scaledImage)) {
+                fields.add(field);
+                if (!joinJcd) continue;
+                if (field.name().equals(ceddFieldName)) {
+                    cedd = new CEDD();
+                    BytesRef bytes = field.binaryValue();
+                    cedd.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+                } else if (field.name().equals(fcthFieldName)) {
+                    fcth = new FCTH();
+                    BytesRef bytes = field.binaryValue();
+                    fcth.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+                }
+            }
+        }
+        if (joinJcd) {
+            // the same fields GenericDocumentBuilder creates for a hashed feature.
+            JCD jcd = new JCD(cedd, fcth);
+            fields.add(new StoredField(jcdFieldName, new BytesRef(jcd.getByteArrayRepresentation())));
+            fields.add(new TextField(jcdFieldName + GenericDocumentBuilder.HASH_FIELD_SUFFIX, SerializationUtils.arrayToString(BitSampling.generateHashes(jcd.getDoubleHistogram())), Field.Store.NO));
+        }
+        return fields.toArray(new Field[fields.size()]);
+    }
+
+    public Document createDocument(BufferedImage image, String identifier) {
+        Document document = new Document();
+        if (identifier != null)
+            document.add(new StringField(DocumentBuilder.FIELD_NAME_IDENTIFIER, identifier, Field.Store.YES));
+        for (Field field : createDescriptorFields(image))
+            document.add(field);
+        return document;
+    }
+}
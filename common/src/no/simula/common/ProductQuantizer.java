@@ -0,0 +1,378 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import net.semanticmetadata.lire.imageanalysis.LireFeature;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+
+import java.io.*;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Random;
+import java.util.Set;
+
+// Product quantization (Jegou et al.) of a single feature of an index: every histogram is split into
+// subspaces, and each part is replaced by the index of the closest of 256 centroids, so a document
+// takes one byte per subspace. Queries are compared against the codes through lookup tables
+// (asymmetric distance computation). For CEDD, FCTH and JCD the tanimoto distance of the query and
+// the reconstructed histogram is computed, for any other feature the squared euclidean distance.
+// The codes are stored per row, and a row is a docId, so they are only valid for the exact index
+// they were built from.
+public class ProductQuantizer {
+    private static final int MAGIC = 0x50514344; // "PQCD"
+    private static final int VERSION = 1;
+    private static final int maximumCentroids = 256;
+    private static final int trainingSize = 32768;
+    private static final int trainingIterations = 12;
+    public static final String FILE_SUFFIX = ".pq";
+
+    private final boolean tanimoto;
+    private final int dimensions;
+    private final int numSubspaces;
+    private final int numCentroids;
+    private final int[] subspaceStart; // numSubspaces + 1 entries
+    private final float[][] codebooks; // [subspace][centroid * subspace dimensions]
+    private final float[] centroidNorms; // [subspace * numCentroids + centroid], squared norms
+    private int numRows = 0;
+    private BitSet present = new BitSet();
+    private byte[] codes = new byte[0]; // numRows * numSubspaces
+
+    private ProductQuantizer(boolean tanimoto, int dimensions, int numSubspaces, int numCentroids) {
+        this.tanimoto = tanimoto;
+        this.dimensions = dimensions;
+        this.numSubspaces = numSubspaces;
+        this.numCentroids = numCentroids;
+        subspaceStart = new int[numSubspaces + 1];
+        for (int s = 0; s <= numSubspaces; ++s)
+            subspaceStart[s] = s * dimensions / numSubspaces;
+        codebooks = new float[numSubspaces][];
+        centroidNorms = new float[numSubspaces * numCentroids];
+        for (int s = 0; s < numSubspaces; ++s)
+            codebooks[s] = new float[numCentroids * subspaceDimensions(s)];
+    }
+
+    public static File getFile(File indexDirectory, String featureName) {
+        return new File(indexDirectory, featureName + FILE_SUFFIX);
+    }
+
+    public int numRows() {
+        return numRows;
+    }
+
+    public int numSubspaces() {
+        return numSubspaces;
+    }
+
+    private int subspaceDimensions(int s) {
+        return subspaceStart[s + 1] - subspaceStart[s];
+    }
+
+    // Reads the histograms of a feature one document at a time.
+    private static class HistogramReader {
+        private final IndexReader reader;
+        private final String fieldName;
+        private final Set<String> fieldsToLoad;
+        private final LireFeature feature;
+        private final boolean tanimoto;
+        private final Bits liveDocs;
+
+        HistogramReader(IndexReader reader, String featureName) throws IOException {
+            try {
+                feature = (LireFeature) Class.forName(Features.getClassName(featureName)).newInstance();
+            } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+                throw new IOException("invalid feature name: " + featureName, e);
+            }
+            this.reader = reader;
+            fieldName = feature.getFieldName();
+            fieldsToLoad = Collections.singleton(fieldName);
+            tanimoto = FeatureMatrix.isTanimotoFeature(featureName);
+            liveDocs = MultiFields.getLiveDocs(reader);
+        }
+
+        // The histogram of docId (normalised for tanimoto features), or null if it has none.
+        float[] read(int docId) throws IOException {
+            if (liveDocs != null && !liveDocs.get(docId)) return null;
+            BytesRef bytes = reader.document(docId, fieldsToLoad).getBinaryValue(fieldName);
+            if (bytes == null) return null;
+            feature.setByteArrayRepresentation(bytes.bytes, bytes.offset, bytes.length);
+            double[] histogram = feature.getDoubleHistogram();
+            float[] vector = new float[histogram.length];
+            if (tanimoto) {
+                FeatureMatrix.normalize(histogram, vector, 0);
+            } else {
+                for (int i = 0; i < histogram.length; ++i)
+                    vector[i] = (float) histogram[i];
+            }
+            return vector;
+        }
+    }
+
+    // Trains the codebooks on a sample of the index and encodes every document.
+    // numSubspaces <= 0 selects one subspace per 8 dimensions.
+    public static ProductQuantizer train(IndexReader reader, String featureName, int numSubspaces, long seed) throws IOException {
+        HistogramReader histograms = new HistogramReader(reader, featureName);
+        Random random = new Random(seed);
+
+        // reservoir sample of the training vectors.
+        float[][] sample = new float[Math.min(trainingSize, reader.numDocs())][];
+        int numSampled = 0;
+        int numSeen = 0;
+        int dimensions = -1;
+        for (int docId = 0; docId < reader.maxDoc(); ++docId) {
+            float[] vector = histograms.read(docId);
+            if (vector == null) continue;
+            if (dimensions < 0)
+                dimensions = vector.length;
+            else if (vector.length != dimensions)
+                throw new IOException("inconsistent dimensions for feature " + featureName + " in document " + docId);
+            if (numSampled < sample.length) {
+                sample[numSampled++] = vector;
+            } else {
+                int slot = random.nextInt(numSeen + 1);
+                if (slot < sample.length) sample[slot] = vector;
+            }
+            ++numSeen;
+        }
+        if (numSampled == 0)
+            throw new IOException("no document contains feature " + featureName + ".");
+
+        if (numSubspaces <= 0) numSubspaces = (dimensions + 7) / 8;
+        numSubspaces = Math.min(numSubspaces, dimensions);
+        ProductQuantizer quantizer = new ProductQuantizer(histograms.tanimoto, dimensions, numSubspaces, Math.min(maximumCentroids, numSampled));
+        for (int s = 0; s < numSubspaces; ++s)
+            quantizer.trainSubspace(s, sample, numSampled, random);
+
+        quantizer.numRows = reader.maxDoc();
+        quantizer.codes = new byte[quantizer.numRows * numSubspaces];
+        for (int docId = 0; docId < quantizer.numRows; ++docId) {
+            float[] vector = histograms.read(docId);
+            if (vector == null) continue;
+            quantizer.present.set(docId);
+            for (int s = 0; s < numSubspaces; ++s)
+                quantizer.codes[docId * numSubspaces + s] = (byte) quantizer.nearestCentroid(s, vector);
+        }
+        return quantizer;
+    }
+
+    // k-means on one subspace of the sample, seeded with randomly chosen sample vectors.
+    private void trainSubspace(int s, float[][] sample, int numSampled, Random random) {
+        int start = subspaceStart[s];
+        int length = subspaceDimensions(s);
+        float[] codebook = codebooks[s];
+        int[] order = new int[numSampled];
+        for (int i = 0; i < numSampled; ++i) order[i] = i;
+        for (int c = 0; c < numCentroids; ++c) {
+            int j = c + random.nextInt(numSampled - c);
+            int swap = order[c]; order[c] = order[j]; order[j] = swap;
+            System.arraycopy(sample[order[c]], start, codebook, c * length, length);
+        }
+
+        int[] assignment = new int[numSampled];
+        double[] sums = new double[numCentroids * length];
+        int[] counts = new int[numCentroids];
+        for (int iteration = 0; iteration < trainingIterations; ++iteration) {
+            for (int i = 0; i < numSampled; ++i)
+                assignment[i] = nearestCentroid(s, sample[i]);
+            Arrays.fill(sums, 0);
+            Arrays.fill(counts, 0);
+            for (int i = 0; i < numSampled; ++i) {
+                int c = assignment[i];
+                ++counts[c];
+                for (int d = 0; d < length; ++d)
+                    sums[c * length + d] += sample[i][start + d];
+            }
+            for (int c = 0; c < numCentroids; ++c) {
+                if (counts[c] == 0) {
+                    // an empty cluster restarts at a random sample vector.
+                    System.arraycopy(sample[random.nextInt(numSampled)], start, codebook, c * length, length);
+                    continue;
+                }
+                for (int d = 0; d < length; ++d)
+                    codebook[c * length + d] = (float) (sums[c * length + d] / counts[c]);
+            }
+        }
+
+        for (int c = 0; c < numCentroids; ++c) {
+            float norm = 0;
+            for (int d = 0; d < length; ++d)
+                norm += codebook[c * length + d] * codebook[c * length + d];
+            centroidNorms[s * numCentroids + c] = norm;
+        }
+    }
+
+    private int nearestCentroid(int s, float[] vector) {
+        int start = subspaceStart[s];
+        int length = subspaceDimensions(s);
+        float[] codebook = codebooks[s];
+        int nearest = 0;
+        float nearestDistance = Float.MAX_VALUE;
+        for (int c = 0; c < numCentroids; ++c) {
+            float distance = 0;
+            for (int d = 0; d < length; ++d) {
+                float difference = vector[start + d] - codebook[c * length + d];
+                distance += difference * difference;
+            }
+            if (distance < nearestDistance) {
+                nearestDistance = distance;
+                nearest = c;
+            }
+        }
+        return nearest;
+    }
+
+    public void write(File file) throws IOException {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+        try {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeBoolean(tanimoto);
+            out.writeInt(dimensions);
+            out.writeInt(numSubspaces);
+            out.writeInt(numCentroids);
+            for (float[] codebook : codebooks)
+                for (float value : codebook)
+                    out.writeFloat(value);
+            out.writeInt(numRows);
+            long[] presentWords = present.toLongArray();
+            out.writeInt(presentWords.length);
+            for (long word : presentWords)
+                out.writeLong(word);
+            out.write(codes);
+        } finally {
+            out.close();
+        }
+    }
+
+    public static ProductQuantizer read(File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException(file + " is not a supported product quantization file.");
+            boolean tanimoto = in.readBoolean();
+            int dimensions = in.readInt();
+            int numSubspaces = in.readInt();
+            int numCentroids = in.readInt();
+            ProductQuantizer quantizer = new ProductQuantizer(tanimoto, dimensions, numSubspaces, numCentroids);
+            for (int s = 0; s < numSubspaces; ++s) {
+                float[] codebook = quantizer.codebooks[s];
+                int length = quantizer.subspaceDimensions(s);
+                for (int i = 0; i < codebook.length; ++i)
+                    codebook[i] = in.readFloat();
+                for (int c = 0; c < numCentroids; ++c) {
+                    float norm = 0;
+                    for (int d = 0; d < length; ++d)
+                        norm += codebook[c * length + d] * codebook[c * length + d];
+                    quantizer.centroidNorms[s * numCentroids + c] = norm;
+                }
+            }
+            quantizer.numRows = in.readInt();
+            long[] presentWords = new long[in.readInt()];
+            for (int i = 0; i < presentWords.length; ++i)
+                presentWords[i] = in.readLong();
+            quantizer.present = BitSet.valueOf(presentWords);
+            quantizer.codes = new byte[quantizer.numRows * numSubspaces];
+            in.readFully(quantizer.codes);
+            return quantizer;
+        } finally {
+            in.close();
+        }
+    }
+
+    // The lookup tables of a query. A query must only be used by a single thread.
+    public Query newQuery() {
+        return new Query();
+    }
+
+    public class Query {
+        private final float[] table = new float[numSubspaces * numCentroids];
+        private float squaredNorm = 0;
+        private boolean valid = false;
+
+        // Prepares the lookup tables for the given histogram, as returned by LireFeature.getDoubleHistogram().
+        public void set(double[] histogram) {
+            valid = histogram.length == dimensions;
+            if (!valid) return;
+            float[] vector = new float[dimensions];
+            if (tanimoto) {
+                squaredNorm = FeatureMatrix.normalize(histogram, vector, 0);
+            } else {
+                for (int i = 0; i < dimensions; ++i)
+                    vector[i] = (float) histogram[i];
+            }
+            for (int s = 0; s < numSubspaces; ++s) {
+                int start = subspaceStart[s];
+                int length = subspaceDimensions(s);
+                float[] codebook = codebooks[s];
+                for (int c = 0; c < numCentroids; ++c) {
+                    float value = 0;
+                    for (int d = 0; d < length; ++d) {
+                        float centroid = codebook[c * length + d];
+                        if (tanimoto) {
+                            value += vector[start + d] * centroid;
+                        } else {
+                            float difference = vector[start + d] - centroid;
+                            value += difference * difference;
+                        }
+                    }
+                    table[s * numCentroids + c] = value;
+                }
+            }
+        }
+    }
+
+    // Scans the codes of all rows and offers every approximate distance to hits.
+    public void search(Query query, TopKSelector hits) {
+        search(query, 0, hits);
+    }
+
+    // The same, with the rows reported shifted by rowOffset, as when several indices are searched
+    // as one collection.
+    public void search(Query query, int rowOffset, TopKSelector hits) {
+        if (!query.valid) return;
+        float[] table = query.table;
+        for (int row = present.nextSetBit(0); row >= 0; row = present.nextSetBit(row + 1)) {
+            int offset = row * numSubspaces;
+            if (tanimoto) {
+                float dot = 0;
+                float rowNorm = 0;
+                for (int s = 0, t = 0; s < numSubspaces; ++s, t += numCentroids) {
+                    int code = t + (codes[offset + s] & 0xff);
+                    dot += table[code];
+                    rowNorm += centroidNorms[code];
+                }
+                float distance;
+                if (rowNorm == 0 || query.squaredNorm == 0)
+                    distance = (rowNorm == 0 && query.squaredNorm == 0) ? 0f : 100f;
+                else
+                    distance = 100 - 100 * (dot / (query.squaredNorm + rowNorm - dot));
+                hits.insert(distance, rowOffset + row);
+            } else {
+                float distance = 0;
+                for (int s = 0, t = 0; s < numSubspaces; ++s, t += numCentroids)
+                    distance += table[t + (codes[offset + s] & 0xff)];
+                hits.insert(distance, rowOffset + row);
+            }
+        }
+    }
+}
@@ -0,0 +1,115 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+// The timers of all stages of indexing and classification, by name, e.g. "index.decode" or
+// "classify.search.JCD". Every timer is registered with JMX as no.simula.opensea:type=Stage,name=...
+// and all of them can be dumped as json to a file regularly. Comparing the busy seconds of the
+// stages shows whether a run is bound by reading, decoding, extraction or search.
+public class StageMetrics {
+    private static final String JMX_DOMAIN = "no.simula.opensea";
+    private static final ConcurrentHashMap<String, StageTimer> timers = new ConcurrentHashMap<String, StageTimer>();
+    private static ScheduledExecutorService dumper = null;
+    private static File dumpFile = null;
+
+    public static StageTimer timer(String name) {
+        StageTimer timer = timers.get(name);
+        if (timer != null)
+            return timer;
+        return timers.computeIfAbsent(name, (String timerName) -> {
+            StageTimer newTimer = new StageTimer(timerName);
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(newTimer, new ObjectName(JMX_DOMAIN + ":type=Stage,name=" + ObjectName.quote(timerName)));
+            } catch (JMException e) {
+                System.out.println("could not register " + timerName + " with JMX: " + e.getMessage());
+            }
+            return newTimer;
+        });
+    }
+
+    public static String toJson() {
+        StringBuilder json = new StringBuilder();
+        json.append("{\n    \"time\": ").append(System.currentTimeMillis()).append(",\n    \"stages\": {");
+        String separator = "\n";
+        for (Map.Entry<String, StageTimer> entry : new TreeMap<String, StageTimer>(timers).entrySet()) {
+            json.append(separator).append("        \"").append(entry.getKey()).append("\": ").append(entry.getValue().toJson());
+            separator = ",\n";
+        }
+        json.append("\n    }\n}\n");
+        return json.toString();
+    }
+
+    // Writes the metrics to file every periodSeconds, replacing the previous dump, until stopDump().
+    public static synchronized void startDump(File file, int periodSeconds) {
+        stopDump();
+        dumpFile = file;
+        dumper = Executors.newSingleThreadScheduledExecutor((Runnable r) -> {
+            Thread thread = new Thread(r, "metrics dump");
+            thread.setDaemon(true);
+            return thread;
+        });
+        dumper.scheduleAtFixedRate(() -> writeDump(file), periodSeconds, periodSeconds, TimeUnit.SECONDS);
+    }
+
+    // Stops the regular dumps, and writes the final metrics.
+    public static synchronized void stopDump() {
+        if (dumper == null) return;
+        dumper.shutdownNow();
+        try {
+            dumper.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writeDump(dumpFile);
+        dumper = null;
+        dumpFile = null;
+    }
+
+    // The dump is written next to file and then renamed, so that readers never see half a dump.
+    private static void writeDump(File file) {
+        File temporaryFile = new File(file.getPath() + ".tmp");
+        try {
+            FileWriter writer = new FileWriter(temporaryFile);
+            try {
+                writer.write(toJson());
+            } finally {
+                writer.close();
+            }
+            Files.move(temporaryFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            System.out.println("could not write metrics to " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,72 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+
+// A bounded queue between two stages of a pipeline. put() blocks while the queue is full, so a slow
+// stage holds back the stages before it instead of letting the queue grow.
+// The depth is sampled regularly: a queue that is always full feeds the bottleneck of the pipeline.
+public class StageQueue<T> {
+    private final String name;
+    private final ArrayBlockingQueue<T> queue;
+    private long depthSum = 0;
+    private int numSamples = 0;
+    private int maximumDepth = 0;
+
+    public StageQueue(String name, int capacity) {
+        this.name = name;
+        queue = new ArrayBlockingQueue<T>(capacity);
+    }
+
+    public void put(T element) throws InterruptedException {
+        queue.put(element);
+    }
+
+    public T take() throws InterruptedException {
+        return queue.take();
+    }
+
+    // Moves up to maximum elements that are available without waiting to target.
+    public int drainTo(Collection<? super T> target, int maximum) {
+        return queue.drainTo(target, maximum);
+    }
+
+    public int capacity() {
+        return queue.size() + queue.remainingCapacity();
+    }
+
+    public synchronized void sample() {
+        int depth = queue.size();
+        depthSum += depth;
+        ++numSamples;
+        if (depth > maximumDepth) maximumDepth = depth;
+    }
+
+    public String toString() {
+        return name + " " + queue.size() + "/" + capacity();
+    }
+
+    public synchronized String getSummary() {
+        float averageDepth = numSamples == 0 ? 0f : (float) depthSum / numSamples;
+        return name + " queue: average depth " + String.format("%.1f", averageDepth) + ", maximum " + maximumDepth + " of " + capacity();
+    }
+}
@@ -0,0 +1,113 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Times every pass through a stage of a pipeline, like decoding an image or searching a feature.
+// A pass may process several items, e.g. a batch of documents, then its latency is recorded once
+// and all items are counted. The items per second are counted from the first pass on.
+//     long startTime = timer.start();
+//     ...
+//     timer.stop(startTime);
+public class StageTimer implements StageTimerMXBean {
+    private final String name;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+    private final LongAdder items = new LongAdder();
+    private final AtomicLong firstStartTime = new AtomicLong();
+
+    StageTimer(String name) {
+        this.name = name;
+    }
+
+    public long start() {
+        long startTime = System.nanoTime();
+        if (firstStartTime.get() == 0)
+            firstStartTime.compareAndSet(0, startTime);
+        return startTime;
+    }
+
+    public void stop(long startTime) {
+        stop(startTime, 1);
+    }
+
+    public void stop(long startTime, int numItems) {
+        histogram.record(System.nanoTime() - startTime);
+        items.add(numItems);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public long getCount() {
+        return histogram.snapshot().count();
+    }
+
+    public long getItems() {
+        return items.sum();
+    }
+
+    public double getItemsPerSecond() {
+        long startTime = firstStartTime.get();
+        if (startTime == 0) return 0;
+        return items.sum() / ((System.nanoTime() - startTime) / 1e9);
+    }
+
+    // The time spent in this stage, summed up over all threads.
+    public double getBusySeconds() {
+        return histogram.snapshot().sum() / 1e9;
+    }
+
+    public double getMeanMicros() {
+        return histogram.snapshot().mean() / 1e3;
+    }
+
+    public double getP50Micros() {
+        return histogram.snapshot().percentile(50) / 1e3;
+    }
+
+    public double getP90Micros() {
+        return histogram.snapshot().percentile(90) / 1e3;
+    }
+
+    public double getP99Micros() {
+        return histogram.snapshot().percentile(99) / 1e3;
+    }
+
+    public double getP999Micros() {
+        return histogram.snapshot().percentile(99.9) / 1e3;
+    }
+
+    public double getMaxMicros() {
+        return histogram.snapshot().max() / 1e3;
+    }
+
+    String toJson() {
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        return String.format(Locale.ROOT, "{\"count\": %d, \"items\": %d, \"itemsPerSecond\": %.2f, \"busySeconds\": %.3f, "
+                        + "\"meanMicros\": %.1f, \"p50Micros\": %.1f, \"p90Micros\": %.1f, \"p99Micros\": %.1f, \"p999Micros\": %.1f, \"maxMicros\": %.1f}",
+                snapshot.count(), items.sum(), getItemsPerSecond(), snapshot.sum() / 1e9, snapshot.mean() / 1e3,
+                snapshot.percentile(50) / 1e3, snapshot.percentile(90) / 1e3, snapshot.percentile(99) / 1e3,
+                snapshot.percentile(99.9) / 1e3, snapshot.max() / 1e3);
+    }
+}
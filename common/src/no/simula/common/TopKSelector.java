@@ -0,0 +1,134 @@
+/***********************************************************************
+ * Copyright 2015 Zeno Albisser, Michael Riegler
+ *
+ * This file is part of OpenSea.
+ *
+ * OpenSea is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * OpenSea is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with OpenSea.  If not, see <http://www.gnu.org/licenses/>.*
+ ***********************************************************************/
+
+package no.simula.common;
+
+// Keeps the k smallest scores seen since the last reset() in a max-heap made of
+// parallel primitive arrays, so a selector can be reused for any number of queries.
+// If a label column is set, every accepted docId also records its label, which allows
+// collecting the hits of several indices in a single selector.
+public class TopKSelector {
+    private final int capacity;
+    private final float[] scores;
+    private final int[] docIds;
+    private final byte[] labels;
+    private byte[] labelColumn = null;
+    private int size = 0;
+
+    public TopKSelector(int capacity) {
+        this.capacity = capacity;
+        scores = new float[capacity];
+        docIds = new int[capacity];
+        labels = new byte[capacity];
+    }
+
+    public void reset() {
+        size = 0;
+        labelColumn = null;
+    }
+
+    // The labels of all docIds inserted from now on, indexed by docId.
+    public void setLabelColumn(byte[] labelColumn) {
+        this.labelColumn = labelColumn;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int capacity() {
+        return capacity;
+    }
+
+    public float score(int position) {
+        return scores[position];
+    }
+
+    public int docId(int position) {
+        return docIds[position];
+    }
+
+    public byte label(int position) {
+        return labels[position];
+    }
+
+    public boolean isFull() {
+        return size == capacity;
+    }
+
+    // The score a candidate has to beat to be accepted once the selector is full.
+    public float worstScore() {
+        return size == 0 ? Float.MAX_VALUE : scores[0];
+    }
+
+    // Returns false if score was not accepted. NaN scores (e.g. distances to rows without the
+    // feature) are never accepted, since they would break the order of the heap.
+    public boolean insert(float score, int docId) {
+        if (score != score) return false;
+        byte label = labelColumn == null ? 0 : labelColumn[docId];
+        if (size < capacity) {
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if (scores[parent] >= score) break;
+                scores[i] = scores[parent];
+                docIds[i] = docIds[parent];
+                labels[i] = labels[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            docIds[i] = docId;
+            labels[i] = label;
+            return true;
+        }
+        if (capacity == 0 || scores[0] <= score) return false;
+        siftDown(0, size, score, docId, label);
+        return true;
+    }
+
+    // Sorts the selected entries by ascending score. Positions then equal ranks,
+    // but no further insert() calls are allowed until the next reset().
+    public void sort() {
+        for (int end = size - 1; end > 0; --end) {
+            float score = scores[end];
+            int docId = docIds[end];
+            byte label = labels[end];
+            scores[end] = scores[0];
+            docIds[end] = docIds[0];
+            labels[end] = labels[0];
+            siftDown(0, end, score, docId, label);
+        }
+    }
+
+    private void siftDown(int i, int length, float score, int docId, byte label) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= length) break;
+            if (child + 1 < length && scores[child + 1] > scores[child]) ++child;
+            if (scores[child] <= score) break;
+            scores[i] = scores[child];
+            docIds[i] = docIds[child];
+            labels[i] = labels[child];
+            i = child;
+        }
+        scores[i] = score;
+        docIds[i] = docId;
+        labels[i] = label;
+    }
+}
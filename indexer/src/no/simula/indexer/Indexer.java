@@ -19,15 +19,18 @@
 
 package no.simula.indexer;
 
-import javax.imageio.ImageIO;
 import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.FileInputStream;
+import java.io.FileWriter;
 import java.io.IOException;
+import java.io.PrintWriter;
+import java.nio.file.Files;
 import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.semanticmetadata.lire.DocumentBuilder;
 import net.semanticmetadata.lire.DocumentBuilderFactory;
@@ -36,23 +39,144 @@ import net.semanticmetadata.lire.imageanalysis.joint.JointHistogram;
 import net.semanticmetadata.lire.imageanalysis.joint.LocalBinaryPatternsAndOpponent;
 import net.semanticmetadata.lire.imageanalysis.joint.RankAndOpponent;
 import net.semanticmetadata.lire.imageanalysis.OpponentHistogram;
-import net.semanticmetadata.lire.impl.ChainedDocumentBuilder;
-import net.semanticmetadata.lire.impl.GenericDocumentBuilder;
 import net.semanticmetadata.lire.utils.FileUtils;
 import net.semanticmetadata.lire.utils.LuceneUtils;
 import org.apache.lucene.analysis.core.WhitespaceAnalyzer;
 import org.apache.lucene.document.Document;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.MergePolicy;
+import org.apache.lucene.index.MultiFields;
+import org.apache.lucene.index.SerialMergeScheduler;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TieredMergePolicy;
 import org.apache.lucene.store.FSDirectory;
+import org.apache.lucene.util.Bits;
+import no.simula.common.FeatureMatrix;
+import no.simula.common.Features;
+import no.simula.common.HnswGraph;
+import no.simula.common.ImageDecoder;
+import no.simula.common.MultiFeatureDocumentBuilder;
+import no.simula.common.ProductQuantizer;
+import no.simula.common.StageMetrics;
+import no.simula.common.StageQueue;
+import no.simula.common.StageTimer;
 
 public class Indexer {
     static ExecutorService pool = null;
-    static IndexWriter indexWriter = null;
     static Boolean silent = false;
+    static int graphLinks = 0; // build no graphs by default
+    static int efConstruction = 200;
+    static boolean quantize = false;
+    static int quantizerSubspaces = 0; // one subspace per 8 dimensions
+    static boolean incremental = false;
+    static int readThreads = 4; // reading files mostly waits for the disk.
+    static int decodeThreads = 0; // half of the extraction threads by default
+    static int extractionThreads = 0; // one per physical core by default
+    static int queueSize = 0; // twice the number of consuming threads by default
+    static int batchSize = 64;
+    static int maxResolution = 0; // decode images at full resolution by default
+    static int writeThreads = 2;
+    static double ramBufferSizeMB = 64;
+    static String mergePolicy = "tiered"; // tiered, logByteSize or logDoc
+    static boolean serialMerges = false;
+    static int mergeThreads = 0; // Lucene's default
+    static boolean compoundFiles = true;
+    static int forceMergeSegments = 0; // no forceMerge by default
+    // the stages of indexing, a pass of index.add writes a batch of documents.
+    private static final StageTimer readTimer = StageMetrics.timer("index.read");
+    private static final StageTimer decodeTimer = StageMetrics.timer("index.decode");
+    private static final StageTimer extractionTimer = StageMetrics.timer("index.extract");
+    private static final StageTimer addTimer = StageMetrics.timer("index.add");
 
-    private static synchronized void protectedAddDocument(Document document) throws java.io.IOException {
-       indexWriter.addDocument(document);
+    // size and modification time of the indexed image files, used to detect modified images when indexing incrementally.
+    public static final String FIELD_NAME_FILE_SIZE = "fileSize";
+    public static final String FIELD_NAME_LAST_MODIFIED = "fileLastModified";
+
+    // A directory of images, and the index inside it.
+    private static class ImageDirectory {
+        final String path;
+        final String indexPath;
+        List<String> images = null;
+        Map<String, IndexedFile> indexedFiles = null; // the previous content of an index that is updated
+        boolean indexChanged = true;
+        IndexWriter indexWriter = null;
+        // images that could not be read, decoded or extracted, with the reason. They are left out of the index.
+        final ArrayList<String> skippedImages = new ArrayList<String>();
+        // images that are neither written nor skipped yet.
+        final AtomicInteger remainingImages = new AtomicInteger();
+
+        ImageDirectory(String path) {
+            this.path = path;
+            indexPath = path + "/index";
+        }
+
+        void writeDocuments(List<Document> documents) throws IOException {
+            long startTime = addTimer.start();
+            if (!incremental) {
+                indexWriter.addDocuments(documents);
+            } else {
+                for (Document document : documents) // replaces the document of a modified image
+                    indexWriter.updateDocument(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, document.get(DocumentBuilder.FIELD_NAME_IDENTIFIER)), document);
+            }
+            addTimer.stop(startTime, documents.size());
+            finishImages(documents.size());
+        }
+
+        void skipImage(String imageFilePath, Exception e) {
+            synchronized (this) {
+                skippedImages.add(imageFilePath + ": " + e);
+            }
+            finishImages(1);
+        }
+
+        // Once the last image of the directory is written or skipped, its buffered documents are committed,
+        // so that the index writer does not hold them while the pipeline works on other directories.
+        private void finishImages(int count) {
+            if (remainingImages.addAndGet(-count) != 0) return;
+            try {
+                indexWriter.commit();
+            } catch (IOException e) {
+                System.err.println("Error writing the index.");
+                e.printStackTrace();
+                System.exit(-1);
+            }
+        }
+    }
+
+    // An image on its way through the pipeline.
+    private static class ImageFile {
+        final ImageDirectory directory;
+        final String path;
+        long size;
+        long lastModified;
+        byte[] data = null;
+        BufferedImage image = null;
+        Document document = null;
+
+        ImageFile(ImageDirectory directory, String path) {
+            this.directory = directory;
+            this.path = path;
+        }
+    }
+    private static final ImageFile endOfImages = new ImageFile(null, null);
+
+    private static class IndexedFile {
+        final long size;
+        final long lastModified;
+
+        IndexedFile(long size, long lastModified) {
+            this.size = size;
+            this.lastModified = lastModified;
+        }
     }
 
     private static boolean deleteDirectory(File directory) {
@@ -88,12 +212,30 @@ public class Indexer {
     }
 
     private static int currentProgress = 0;
+    private static volatile String progressDetails = null;
     private synchronized static void showProgress(int index, int numDocs) {
         if (silent) return;
         if (index < currentProgress) return;
         currentProgress = index;
         clearScreen();
         System.out.println(clearLine() + (int) (100.0 / (float) numDocs * (float) currentProgress) + "%");
+        if (progressDetails != null)
+            System.out.println(progressDetails);
+    }
+
+    public static final String SKIPPED_IMAGES_FILE_NAME = "skipped.txt";
+
+    private static void writeSkippedImages(ArrayList<String> skippedImages, File file) throws IOException {
+        System.out.println(skippedImages.size() + " images were skipped, see " + file.getPath() + ":");
+        PrintWriter writer = new PrintWriter(new FileWriter(file));
+        try {
+            for (String skippedImage : skippedImages) {
+                writer.println(skippedImage);
+                System.out.println("  " + skippedImage);
+            }
+        } finally {
+            writer.close();
+        }
     }
 
     public static void main(ArrayList<String> directories, ArrayList<String> featureNames, Boolean silent) throws IOException {
@@ -107,104 +249,416 @@ public class Indexer {
         }
         Indexer.silent = silent;
 
+        ArrayList<ImageDirectory> imageDirectories = new ArrayList<ImageDirectory>();
         for (String samplePath : directories) {
-            System.out.println("Indexing images in " + samplePath);
-            currentProgress=0;
             File f = new File(samplePath);
             if (!f.exists() || !f.isDirectory()) {
                 System.out.println("No directory given as first argument.");
                 System.out.println("Run \"Indexer <directory>\" to index files of a directory.");
                 System.exit(1);
             }
+            ImageDirectory directory = new ImageDirectory(samplePath);
+            openIndex(directory, featureNames);
+            imageDirectories.add(directory);
+        }
 
-            List<String> images = Collections.synchronizedList(FileUtils.getAllImages(new File(samplePath), true));
-            DocumentBuilder builder = getCustomDocumentBuilder(featureNames);
+        // the images of all directories go through one pipeline, which only drains once at the very end.
+        ArrayList<ImageFile> imageFiles = new ArrayList<ImageFile>();
+        for (ImageDirectory directory : imageDirectories) {
+            for (String imageFilePath : directory.images)
+                imageFiles.add(new ImageFile(directory, imageFilePath));
+        }
+        DocumentBuilder builder = getCustomDocumentBuilder(featureNames);
+        long startTime = new Date().getTime();
+        indexImages(imageFiles, builder);
+        long endTime = new Date().getTime();
+        System.out.println("Indexing time: " + (endTime - startTime) / 1000.0f + " seconds");
 
-            String indexPath = samplePath + "/index";
-            File indexFile = new File(indexPath);
-            if (indexFile.exists()) {
-                if (indexFile.isDirectory()) {
-                    if (!deleteDirectory(indexFile)) {
-                        System.out.println("Failed to delete old index (" + indexPath + ").");
-                        System.exit(-1);
-                    }
-                    System.out.println("Old index file was deleted.");
-                } else {
-                    System.out.println("Index (" + indexPath + ") already exists, and I do not feel safe removing it for you.");
-                    System.out.println("Please delete this file manually and re-run the indexer.");
+        for (ImageDirectory directory : imageDirectories)
+            closeIndex(directory, featureNames);
+        System.out.println("Finished indexing.");
+    }
+
+    // Deletes the old index of a directory, or determines which images changed if it is updated,
+    // and opens the index for writing.
+    private static void openIndex(ImageDirectory directory, ArrayList<String> featureNames) throws IOException {
+        System.out.println("Looking for images in " + directory.path);
+        List<String> images = FileUtils.getAllImages(new File(directory.path), true);
+        String indexPath = directory.indexPath;
+        File indexFile = new File(indexPath);
+        if (incremental && indexFile.isDirectory() && DirectoryReader.indexExists(FSDirectory.open(indexFile)))
+            directory.indexedFiles = readIndexedFiles(indexFile, featureNames);
+        if (directory.indexedFiles == null && indexFile.exists()) {
+            if (indexFile.isDirectory()) {
+                if (!deleteDirectory(indexFile)) {
+                    System.out.println("Failed to delete old index (" + indexPath + ").");
                     System.exit(-1);
                 }
+                System.out.println("Old index file was deleted.");
+            } else {
+                System.out.println("Index (" + indexPath + ") already exists, and I do not feel safe removing it for you.");
+                System.out.println("Please delete this file manually and re-run the indexer.");
+                System.exit(-1);
             }
+        }
 
-            IndexWriterConfig conf = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new WhitespaceAnalyzer(LuceneUtils.LUCENE_VERSION));
-            indexWriter = new IndexWriter(FSDirectory.open(new File(indexPath)), conf);
+        directory.indexWriter = new IndexWriter(FSDirectory.open(indexFile), createIndexWriterConfig());
 
-            int numCores = Runtime.getRuntime().availableProcessors() / 2; // most of our machines have hyper threading.
-            if (numCores < 1) numCores = 1;
-            final int numThreads = numCores;
-            System.out.println("using " + numThreads + " threads for indexing.");
-            pool = Executors.newFixedThreadPool(numThreads);
+        Map<String, IndexedFile> indexedFiles = directory.indexedFiles;
+        if (indexedFiles != null) {
+            int numFoundImages = images.size();
+            images = selectChangedImages(images, indexedFiles);
+            System.out.println(images.size() + " new or modified images, " + indexedFiles.size() + " removed images, "
+                    + (numFoundImages - images.size()) + " unchanged images.");
+            for (String imageFilePath : indexedFiles.keySet())
+                directory.indexWriter.deleteDocuments(new Term(DocumentBuilder.FIELD_NAME_IDENTIFIER, imageFilePath));
+            directory.indexChanged = !images.isEmpty() || !indexedFiles.isEmpty();
+        } else {
+            System.out.println(images.size() + " images.");
+        }
+        directory.images = images;
+        directory.remainingImages.set(images.size());
+    }
 
+    private static void closeIndex(ImageDirectory directory, ArrayList<String> featureNames) throws IOException {
+        System.out.println("Finishing index " + directory.indexPath);
+        File skippedImagesFile = new File(directory.indexPath, SKIPPED_IMAGES_FILE_NAME);
+        if (!directory.skippedImages.isEmpty())
+            writeSkippedImages(directory.skippedImages, skippedImagesFile);
+        else if (skippedImagesFile.exists()) // left from an earlier run
+            skippedImagesFile.delete();
+
+        if (forceMergeSegments > 0) {
+            // merging away deleted documents renumbers the docIds, which the search files refer to.
+            if (directory.indexWriter.hasDeletions())
+                directory.indexChanged = true;
             long startTime = new Date().getTime();
-            final int numImages = images.size();
-            for (int runnableId = 0; runnableId < numThreads; ++runnableId) {
-                final int thisRunnableId = runnableId; // lambdas can only access final objects
-                Runnable r = () -> {
-                    for (int index = thisRunnableId; index < numImages; index += numThreads) {
+            directory.indexWriter.forceMerge(forceMergeSegments);
+            long endTime = new Date().getTime();
+            System.out.println("Merged index to at most " + forceMergeSegments + " segments in " + (endTime - startTime) / 1000.0f + " seconds");
+        }
+        directory.indexWriter.close();
+        directory.indexWriter = null;
+
+        if (graphLinks > 0 || quantize || directory.indexedFiles != null)
+            buildSearchFiles(new File(directory.indexPath), featureNames, directory.indexChanged);
+    }
+
+    private static IndexWriterConfig createIndexWriterConfig() {
+        IndexWriterConfig conf = new IndexWriterConfig(LuceneUtils.LUCENE_VERSION, new WhitespaceAnalyzer(LuceneUtils.LUCENE_VERSION));
+        conf.setRAMBufferSizeMB(ramBufferSizeMB);
+        MergePolicy policy;
+        if (mergePolicy.equals("logByteSize"))
+            policy = new LogByteSizeMergePolicy();
+        else if (mergePolicy.equals("logDoc"))
+            policy = new LogDocMergePolicy();
+        else
+            policy = new TieredMergePolicy();
+        // flushed segments use compound files according to the config, merged ones according to the policy.
+        conf.setUseCompoundFile(compoundFiles);
+        if (!compoundFiles)
+            policy.setNoCFSRatio(0.0);
+        conf.setMergePolicy(policy);
+        if (serialMerges) {
+            conf.setMergeScheduler(new SerialMergeScheduler());
+        } else if (mergeThreads > 0) {
+            ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+            // like Lucene's default, a few more merges may be pending before indexing is stalled.
+            scheduler.setMaxMergesAndThreads(mergeThreads + 5, mergeThreads);
+            conf.setMergeScheduler(scheduler);
+        }
+        return conf;
+    }
+
+    // Files are read by readThreads, decoded by decodeThreads, their features extracted by extractionThreads,
+    // and the documents are written in batches by writeThreads. The stages are connected by bounded queues,
+    // so that reading ahead hides the latency of the disk behind decoding and extraction, without holding
+    // more than a few images in memory. Images that fail in any stage are skipped.
+    // The images may belong to several directories, every document is written to the index of its own.
+    private static void indexImages(List<ImageFile> images, DocumentBuilder builder) throws IOException {
+        int numCores = Runtime.getRuntime().availableProcessors() / 2; // most of our machines have hyper threading.
+        if (numCores < 1) numCores = 1;
+        final int numExtractionThreads = extractionThreads > 0 ? extractionThreads : numCores;
+        final int numDecodeThreads = decodeThreads > 0 ? decodeThreads : Math.max(1, numExtractionThreads / 2);
+        final int numReadThreads = readThreads;
+        final int numWriteThreads = writeThreads;
+        StageQueue<ImageFile> files = new StageQueue<ImageFile>("read files", queueSize > 0 ? queueSize : 2 * numDecodeThreads);
+        StageQueue<ImageFile> decodedImages = new StageQueue<ImageFile>("decoded images", queueSize > 0 ? queueSize : 2 * numExtractionThreads);
+        StageQueue<ImageFile> documents = new StageQueue<ImageFile>("extracted features", queueSize > 0 ? queueSize : 2 * batchSize * numWriteThreads);
+        AtomicInteger remainingReadThreads = new AtomicInteger(numReadThreads);
+        AtomicInteger remainingDecodeThreads = new AtomicInteger(numDecodeThreads);
+        AtomicInteger remainingExtractionThreads = new AtomicInteger(numExtractionThreads);
+        AtomicInteger nextImage = new AtomicInteger();
+        AtomicInteger numWritten = new AtomicInteger();
+        System.out.println("using " + numReadThreads + " threads for reading, " + numDecodeThreads + " threads for decoding, "
+                + numExtractionThreads + " threads for feature extraction and " + numWriteThreads + " threads for writing.");
+        pool = Executors.newFixedThreadPool(numReadThreads + numDecodeThreads + numExtractionThreads + numWriteThreads);
+
+        ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor();
+        monitor.scheduleAtFixedRate(() -> {
+            files.sample();
+            decodedImages.sample();
+            documents.sample();
+            progressDetails = files + ", " + decodedImages + ", " + documents;
+        }, 100, 100, TimeUnit.MILLISECONDS);
+
+        final int numImages = images.size();
+        for (int runnableId = 0; runnableId < numReadThreads; ++runnableId) {
+            Runnable r = () -> {
+                try {
+                    int index;
+                    while ((index = nextImage.getAndIncrement()) < numImages) {
+                        ImageFile imageFile = images.get(index);
+                        try {
+                            long startTime = readTimer.start();
+                            File file = new File(imageFile.path);
+                            imageFile.size = file.length();
+                            imageFile.lastModified = file.lastModified();
+                            imageFile.data = Files.readAllBytes(file.toPath());
+                            readTimer.stop(startTime);
+                        } catch (IOException e) {
+                            imageFile.directory.skipImage(imageFile.path, e);
+                            continue;
+                        }
+                        files.put(imageFile);
+                    }
+                    if (remainingReadThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < numDecodeThreads; ++i)
+                            files.put(endOfImages);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            };
+            pool.execute(r);
+        }
+
+        for (int runnableId = 0; runnableId < numDecodeThreads; ++runnableId) {
+            Runnable r = () -> {
+                try {
+                    ImageFile imageFile;
+                    while ((imageFile = files.take()) != endOfImages) {
                         try {
-                            String imageFilePath = images.get(index);
-                            BufferedImage img = ImageIO.read(new FileInputStream(imageFilePath));
-                            Document document = builder.createDocument(img, imageFilePath);
-                            protectedAddDocument(document);
+                            long startTime = decodeTimer.start();
+                            imageFile.image = ImageDecoder.read(imageFile.data, maxResolution);
+                            decodeTimer.stop(startTime);
                         } catch (Exception e) {
-                            System.err.println("Error reading image or indexing it.");
-                            e.printStackTrace();
-                            System.exit(-1);
+                            imageFile.directory.skipImage(imageFile.path, e);
+                            continue;
+                        } finally {
+                            imageFile.data = null;
                         }
-                        showProgress(index, numImages);
+                        decodedImages.put(imageFile);
                     }
-                };
-                pool.execute(r);
-            }
-            pool.shutdown();
-            try {
-                if (!pool.awaitTermination(365, TimeUnit.DAYS)) { // we are waiting for a whole year.
-                    pool.shutdownNow();
-                    if (!pool.awaitTermination(60, TimeUnit.SECONDS))
-                        System.err.println("Pool did not terminate");
+                    if (remainingDecodeThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < numExtractionThreads; ++i)
+                            decodedImages.put(endOfImages);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            };
+            pool.execute(r);
+        }
+
+        for (int runnableId = 0; runnableId < numExtractionThreads; ++runnableId) {
+            Runnable r = () -> {
+                try {
+                    ImageFile imageFile;
+                    while ((imageFile = decodedImages.take()) != endOfImages) {
+                        try {
+                            long startTime = extractionTimer.start();
+                            imageFile.document = builder.createDocument(imageFile.image, imageFile.path);
+                            imageFile.document.add(new StoredField(FIELD_NAME_FILE_SIZE, imageFile.size));
+                            imageFile.document.add(new StoredField(FIELD_NAME_LAST_MODIFIED, imageFile.lastModified));
+                            extractionTimer.stop(startTime);
+                        } catch (Exception e) {
+                            imageFile.directory.skipImage(imageFile.path, e);
+                            continue;
+                        } finally {
+                            imageFile.image = null;
+                        }
+                        documents.put(imageFile);
+                    }
+                    if (remainingExtractionThreads.decrementAndGet() == 0) {
+                        for (int i = 0; i < numWriteThreads; ++i)
+                            documents.put(endOfImages);
+                    }
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
+                }
+            };
+            pool.execute(r);
+        }
+
+        // IndexWriter is thread safe, and every writing thread fills a segment of its own in every index.
+        for (int runnableId = 0; runnableId < numWriteThreads; ++runnableId) {
+            Runnable r = () -> {
+                ArrayList<ImageFile> batch = new ArrayList<ImageFile>(batchSize);
+                ArrayList<Document> batchDocuments = new ArrayList<Document>(batchSize);
+                try {
+                    int numEnds = 0;
+                    while (numEnds == 0) {
+                        batch.add(documents.take());
+                        documents.drainTo(batch, batchSize - 1);
+                        // a batch is split where its images change directory, which happens rarely since
+                        // the images of one directory follow each other.
+                        ImageDirectory batchDirectory = null;
+                        for (ImageFile imageFile : batch) {
+                            if (imageFile == endOfImages) {
+                                ++numEnds;
+                                continue;
+                            }
+                            if (imageFile.directory != batchDirectory && !batchDocuments.isEmpty()) {
+                                batchDirectory.writeDocuments(batchDocuments);
+                                batchDocuments.clear();
+                            }
+                            batchDirectory = imageFile.directory;
+                            batchDocuments.add(imageFile.document);
+                        }
+                        if (!batchDocuments.isEmpty())
+                            batchDirectory.writeDocuments(batchDocuments);
+                        showProgress(numWritten.addAndGet(batch.size() - numEnds), numImages);
+                        batch.clear();
+                        batchDocuments.clear();
+                    }
+                    for (int i = 1; i < numEnds; ++i) // the ends of other writing threads
+                        documents.put(endOfImages);
+                } catch (IOException e) {
+                    System.err.println("Error writing the index.");
+                    e.printStackTrace();
+                    System.exit(-1);
+                } catch (InterruptedException e) {
+                    e.printStackTrace();
+                    System.exit(-1);
                 }
-            } catch (InterruptedException ie) {
+            };
+            pool.execute(r);
+        }
+
+        pool.shutdown();
+        try {
+            if (!pool.awaitTermination(365, TimeUnit.DAYS)) { // we are waiting for a whole year.
                 pool.shutdownNow();
-                Thread.currentThread().interrupt();
+                if (!pool.awaitTermination(60, TimeUnit.SECONDS))
+                    System.err.println("Pool did not terminate");
             }
+        } catch (InterruptedException ie) {
+            pool.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+        monitor.shutdownNow();
+        progressDetails = null;
+        System.out.println(files.getSummary());
+        System.out.println(decodedImages.getSummary());
+        System.out.println(documents.getSummary());
+    }
 
-            long endTime = new Date().getTime();
-            System.out.println("Indexing time: " + (endTime - startTime) / 1000.0f + " seconds");
-
-            indexWriter.close();
+    // Builds the HNSW graphs and product quantization codes of every feature of the (closed) index,
+    // and stores them in the index directory.
+    // Search files refer to documents by docId, so once the index changed, those of a previous run
+    // are rebuilt, or deleted if they are not requested anymore.
+    private static void buildSearchFiles(File indexDirectory, ArrayList<String> featureNames, boolean indexChanged) throws IOException {
+        long startTime = new Date().getTime();
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        try {
+            for (String featureName : featureNames) {
+                File graphFile = HnswGraph.getFile(indexDirectory, featureName);
+                if (graphLinks > 0 && (indexChanged || !graphFile.exists())) {
+                    System.out.println("Building graph for " + featureName);
+                    FeatureMatrix matrix = new FeatureMatrix(reader, featureName);
+                    HnswGraph graph = HnswGraph.build(matrix, graphLinks, efConstruction, featureName.hashCode());
+                    graph.write(graphFile);
+                } else if (graphLinks == 0 && indexChanged && graphFile.exists()) {
+                    System.out.println("Deleting outdated graph for " + featureName);
+                    graphFile.delete();
+                }
+                File quantizerFile = ProductQuantizer.getFile(indexDirectory, featureName);
+                if (quantize && (indexChanged || !quantizerFile.exists())) {
+                    System.out.println("Training product quantization for " + featureName);
+                    ProductQuantizer quantizer = ProductQuantizer.train(reader, featureName, quantizerSubspaces, featureName.hashCode());
+                    quantizer.write(quantizerFile);
+                } else if (!quantize && indexChanged && quantizerFile.exists()) {
+                    System.out.println("Deleting outdated product quantization for " + featureName);
+                    quantizerFile.delete();
+                }
+            }
+        } finally {
+            reader.close();
         }
-        System.out.println("Finished indexing.");
+        long endTime = new Date().getTime();
+        System.out.println("Search file construction time: " + (endTime - startTime) / 1000.0f + " seconds");
     }
 
-    public static DocumentBuilder getCustomDocumentBuilder(ArrayList<String> featureNames) {
-        ChainedDocumentBuilder builder = new ChainedDocumentBuilder();
-        for (String featureName : featureNames)
-            try {
-                String className = getClassName(featureName);
-                Class<? extends LireFeature> c = (Class<? extends LireFeature>) Class.forName(className);
-                builder.addBuilder(new GenericDocumentBuilder(c, true));
-            } catch (ClassNotFoundException e) {
-                System.out.println("invalid feature name: " + featureName);
-                e.printStackTrace();
-                System.exit(-1);
+    // Reads size and modification time of every image in an existing index.
+    // Returns null if the index lacks any of the features, since it then has to be rebuilt entirely.
+    private static Map<String, IndexedFile> readIndexedFiles(File indexDirectory, ArrayList<String> featureNames) throws IOException {
+        IndexReader reader = DirectoryReader.open(FSDirectory.open(indexDirectory));
+        try {
+            FieldInfos fieldInfos = MultiFields.getMergedFieldInfos(reader);
+            for (String featureName : featureNames) {
+                if (reader.numDocs() > 0 && fieldInfos.fieldInfo(getFieldName(featureName)) == null) {
+                    System.out.println("Existing index does not contain " + featureName + " and is rebuilt.");
+                    return null;
+                }
+            }
+
+            HashMap<String, IndexedFile> indexedFiles = new HashMap<String, IndexedFile>();
+            Set<String> fieldsToLoad = new HashSet<String>(Arrays.asList(DocumentBuilder.FIELD_NAME_IDENTIFIER, FIELD_NAME_FILE_SIZE, FIELD_NAME_LAST_MODIFIED));
+            Bits liveDocs = MultiFields.getLiveDocs(reader);
+            for (int docId = 0; docId < reader.maxDoc(); ++docId) {
+                if (liveDocs != null && !liveDocs.get(docId)) continue;
+                Document document = reader.document(docId, fieldsToLoad);
+                String imageFilePath = document.get(DocumentBuilder.FIELD_NAME_IDENTIFIER);
+                if (imageFilePath == null) continue;
+                // documents written before file attributes were stored are always considered modified.
+                IndexableField size = document.getField(FIELD_NAME_FILE_SIZE);
+                IndexableField lastModified = document.getField(FIELD_NAME_LAST_MODIFIED);
+                indexedFiles.put(imageFilePath, new IndexedFile(size == null ? -1 : size.numericValue().longValue(),
+                        lastModified == null ? -1 : lastModified.numericValue().longValue()));
             }
-        return builder;
+            return indexedFiles;
+        } finally {
+            reader.close();
+        }
+    }
+
+    // Returns the images which are not indexed yet or were modified since they were indexed.
+    // The images that are still present are removed from indexedFiles, so that only removed images remain.
+    private static List<String> selectChangedImages(List<String> images, Map<String, IndexedFile> indexedFiles) {
+        ArrayList<String> changedImages = new ArrayList<String>();
+        for (String imageFilePath : images) {
+            IndexedFile indexedFile = indexedFiles.remove(imageFilePath);
+            File imageFile = new File(imageFilePath);
+            if (indexedFile == null || indexedFile.size != imageFile.length() || indexedFile.lastModified != imageFile.lastModified())
+                changedImages.add(imageFilePath);
+        }
+        return changedImages;
+    }
+
+    private static String getFieldName(String featureName) throws IOException {
+        try {
+            LireFeature feature = (LireFeature) Class.forName(Features.getClassName(featureName)).newInstance();
+            return feature.getFieldName();
+        } catch (ClassNotFoundException | InstantiationException | IllegalAccessException e) {
+            throw new IOException("invalid feature name: " + featureName, e);
+        }
     }
 
-    private static String getClassName(String featurename){
-        String className = "net.semanticmetadata.lire.imageanalysis.";
-        if (featurename.equals("JointHistogram") || featurename.equals("LocalBinaryPatternsAndOpponent") || featurename.equals("RankAndOpponent"))
-            return className + "joint." + featurename;
-        return className + featurename;
+    public static DocumentBuilder getCustomDocumentBuilder(ArrayList<String> featureNames) {
+        try {
+            return new MultiFeatureDocumentBuilder(featureNames, maxResolution);
+        } catch (ClassNotFoundException e) {
+            System.out.println("invalid feature name: " + e.getMessage());
+            e.printStackTrace();
+            System.exit(-1);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(-1);
+        }
+        return null;
     }
 }
\ No newline at end of file
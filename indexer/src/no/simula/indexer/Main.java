@@ -19,9 +19,12 @@
 
 package no.simula.indexer;
 
+import no.simula.common.StageMetrics;
+
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 
 public class Main {
     private static void printUsage() {
@@ -37,20 +40,113 @@ public class Main {
         System.out.println("                       Multiple features can be provided.");
         System.out.println("                       Possible features are for example: JCD, FCTH, EdgeHistogram, ...");
         System.out.println("       -s | -silent    Do not print progress messages.");
+        System.out.println("       -u | -update    Update an existing index: only new and modified images are");
+        System.out.println("                       extracted, and removed images are deleted from the index.");
+        System.out.println("       -readThreads    Number of threads reading image files. 4 is default.");
+        System.out.println("       -decodeThreads  Number of threads decoding images. Half of the extraction threads is default.");
+        System.out.println("       -extractThreads Number of threads extracting features. One per physical core is default.");
+        System.out.println("       -queueSize      Number of images queued between two stages. Twice the threads of the");
+        System.out.println("                       next stage is default.");
+        System.out.println("       -batchSize      Number of documents written to the index at once. 64 is default.");
+        System.out.println("       -maxResolution  Decode and extract features of images at most this many pixels wide or high.");
+        System.out.println("                       Large images are subsampled while decoding. Full resolution is default.");
+        System.out.println("       -writeThreads   Number of threads adding documents to the index. 2 is default.");
+        System.out.println("       -ramBuffer      Megabytes of documents buffered before a segment is flushed. 64 is default.");
+        System.out.println("       -mergePolicy    How segments are selected for merging: tiered, logByteSize or logDoc.");
+        System.out.println("                       tiered is default.");
+        System.out.println("       -mergeScheduler Merge segments in background threads (concurrent) or in the writing");
+        System.out.println("                       threads (serial). concurrent is default.");
+        System.out.println("       -mergeThreads   Number of threads merging segments concurrently. Chosen by Lucene by default.");
+        System.out.println("       -noCompound     Do not pack the files of a segment into a compound file.");
+        System.out.println("       -forceMerge     Merge the index down to at most this many segments once indexing finished.");
+        System.out.println("                       Fewer segments are faster to search.");
+        System.out.println("       -g | -graph     Build a HNSW graph for every feature, to be used with");
+        System.out.println("                       the hnsw search engine of the classifier.");
+        System.out.println("       -graphLinks     Maximum number of links per graph node. 16 is default.");
+        System.out.println("       -efConstruction Size of the candidate list when building the graph. 200 is default.");
+        System.out.println("       -q | -quantize  Store product quantization codes for every feature, to be used with");
+        System.out.println("                       the pq search engine of the classifier.");
+        System.out.println("       -pqSubspaces    Number of one byte codes per feature. One per 8 dimensions is default.");
+        System.out.println("       -metricsFile    Write the latency histograms and counters of every stage to this json file,");
+        System.out.println("                       regularly while indexing and once finished. They are also available over JMX.");
+        System.out.println("       -metricsPeriod  Seconds between two writes of the metrics file. 10 is default.");
         System.out.println("");
         System.exit(-1);
     }
 
+    private static int parsePositiveInt(String[] args, int i) {
+        if (i == args.length) printUsage();
+        try {
+            int value = Integer.parseInt(args[i]);
+            if (value > 0) return value;
+        } catch (NumberFormatException e) {
+        }
+        System.out.println("invalid value for " + args[i - 1] + ": " + args[i]);
+        printUsage();
+        return 0;
+    }
+
     public static void main(String[] args) {
         if (args.length == 0)
             printUsage();
 
         Boolean silent = false;
+        File metricsFile = null;
+        int metricsPeriod = 10;
         ArrayList<String> featureNames = new ArrayList<>();
         ArrayList<String> directories = new ArrayList<>();
         for (int i = 0; i < args.length; ++i) {
             if (args[i].equals("-s") || args[i].equals("-silent")) {
                 silent = true;
+            } else if (args[i].equals("-u") || args[i].equals("-update")) {
+                Indexer.incremental = true;
+            } else if (args[i].equals("-readThreads")) {
+                Indexer.readThreads = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-decodeThreads")) {
+                Indexer.decodeThreads = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-extractThreads")) {
+                Indexer.extractionThreads = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-queueSize")) {
+                Indexer.queueSize = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-batchSize")) {
+                Indexer.batchSize = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-maxResolution")) {
+                Indexer.maxResolution = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-writeThreads")) {
+                Indexer.writeThreads = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-ramBuffer")) {
+                Indexer.ramBufferSizeMB = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-mergePolicy")) {
+                ++i;
+                if (i == args.length || !Arrays.asList("tiered", "logByteSize", "logDoc").contains(args[i])) printUsage();
+                Indexer.mergePolicy = args[i];
+            } else if (args[i].equals("-mergeScheduler")) {
+                ++i;
+                if (i == args.length || !Arrays.asList("concurrent", "serial").contains(args[i])) printUsage();
+                Indexer.serialMerges = args[i].equals("serial");
+            } else if (args[i].equals("-mergeThreads")) {
+                Indexer.mergeThreads = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-noCompound")) {
+                Indexer.compoundFiles = false;
+            } else if (args[i].equals("-forceMerge")) {
+                Indexer.forceMergeSegments = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-g") || args[i].equals("-graph")) {
+                if (Indexer.graphLinks == 0) Indexer.graphLinks = 16;
+            } else if (args[i].equals("-graphLinks")) {
+                Indexer.graphLinks = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-efConstruction")) {
+                Indexer.efConstruction = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-q") || args[i].equals("-quantize")) {
+                Indexer.quantize = true;
+            } else if (args[i].equals("-pqSubspaces")) {
+                Indexer.quantize = true;
+                Indexer.quantizerSubspaces = parsePositiveInt(args, ++i);
+            } else if (args[i].equals("-metricsFile")) {
+                ++i;
+                if (i == args.length) printUsage();
+                metricsFile = new File(args[i]);
+            } else if (args[i].equals("-metricsPeriod")) {
+                metricsPeriod = parsePositiveInt(args, ++i);
             } else if (args[i].equals("-f") || args[i].equals("-feature")) {
                 ++i;
                 if (i == args.length) printUsage();
@@ -63,10 +159,13 @@ public class Main {
         if (featureNames.isEmpty())
             featureNames.add("JCD");
 
+        if (metricsFile != null)
+            StageMetrics.startDump(metricsFile, metricsPeriod);
         try {
             Indexer.main(directories, featureNames, silent);
         } catch (IOException e) {
             e.printStackTrace();
         }
+        StageMetrics.stopDump();
     }
 }
\ No newline at end of file